@@ -0,0 +1,323 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+
+/**
+ * Sends alternate print jobs to CUPS through <code>lp</code>, writing the
+ * job data to its standard input rather than to a temporary file. 
+ * 
+ * Jobs queued for a destination while its last <code>lp</code> is still
+ * running are sent together by the next one, in the order they were queued,
+ * so a burst of labels costs a few processes rather than one each. Each
+ * destination has at most one <code>lp</code> running, and the number
+ * running across all destinations is limited.
+ */
+public class AlternatePrintQueue {
+    
+    /**
+     * Default command used to submit jobs
+     */
+    public static final String DEFAULT_COMMAND = "/usr/bin/lp";
+    
+    /**
+     * Default number of <code>lp</code> processes allowed to run at once
+     */
+    public static final int DEFAULT_MAX_PROCESSES = 2;
+    
+    /**
+     * Most jobs sent by a single <code>lp</code>
+     */
+    private static final int MAX_BATCH_JOBS = 50;
+    
+    private static final AlternatePrintQueue defaultQueue = new AlternatePrintQueue();
+    
+    /**
+     * A job waiting for its <code>lp</code>
+     */
+    private static class Job {
+        final InputStream data;
+        final SendListener listener;
+        
+        Job(InputStream data, SendListener listener) {
+            this.data = data;
+            this.listener = listener;
+        }
+    }
+    
+    private final HashMap<String, LinkedList<Job>> queues = new HashMap<String, LinkedList<Job>>();
+    private final LinkedList<String> waiting = new LinkedList<String>();
+    private final ExecutorService executor;
+    private String command = DEFAULT_COMMAND;
+    private int maxProcesses = DEFAULT_MAX_PROCESSES;
+    private int running = 0;
+    private long processes = 0;
+    
+    /**
+     * Get the queue used by <code>RawPrinter.printAlternate</code>
+     * 
+     * @return The shared AlternatePrintQueue
+     */
+    public static AlternatePrintQueue getDefault() {
+        return defaultQueue;
+    }
+    
+    public AlternatePrintQueue() {
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "qz-lp-" + (count++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+    
+    /**
+     * Send a job to a CUPS destination and wait for <code>lp</code> to accept
+     * it.
+     * 
+     * @param destination The CUPS printer name
+     * @param data The job data
+     * @return The number of bytes sent
+     * @throws IOException if <code>lp</code> could not be run or rejected the 
+     * job
+     */
+    public long print(String destination, InputStream data) throws IOException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final long[] sent = new long[1];
+        final IOException[] error = new IOException[1];
+        
+        submit(destination, data, new SendListener() {
+            public void sent(long bytes) {
+                sent[0] = bytes;
+                done.countDown();
+            }
+            
+            public void failed(IOException ex) {
+                error[0] = ex;
+                done.countDown();
+            }
+        });
+        
+        try {
+            done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while printing to " + destination);
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return sent[0];
+    }
+    
+    /**
+     * Queue a job for a CUPS destination and return immediately. The data is
+     * read when its <code>lp</code> runs, so it should be held in memory.
+     * 
+     * @param destination The CUPS printer name
+     * @param data The job data
+     * @param listener Told once <code>lp</code> has accepted or rejected the
+     * job
+     */
+    public void submit(String destination, InputStream data, SendListener listener) {
+        synchronized (queues) {
+            LinkedList<Job> queue = queues.get(destination);
+            if (queue == null) {
+                // No lp running or waiting for this destination
+                queue = new LinkedList<Job>();
+                queues.put(destination, queue);
+                waiting.add(destination);
+            }
+            queue.add(new Job(data, listener));
+            schedule();
+        }
+    }
+    
+    /**
+     * Start an <code>lp</code> for each waiting destination while there are
+     * processes to spare. Must hold the <code>queues</code> lock.
+     */
+    private void schedule() {
+        while (running < maxProcesses && !waiting.isEmpty()) {
+            String destination = waiting.removeFirst();
+            LinkedList<Job> queue = queues.get(destination);
+            ArrayList<Job> batch = new ArrayList<Job>();
+            while (!queue.isEmpty() && batch.size() < MAX_BATCH_JOBS) {
+                batch.add(queue.removeFirst());
+            }
+            running++;
+            executor.execute(new Batch(destination, batch, command));
+        }
+    }
+    
+    /**
+     * Called when a destination's <code>lp</code> has finished. Queues the
+     * destination again if more jobs arrived meanwhile.
+     */
+    private void finished(String destination) {
+        synchronized (queues) {
+            running--;
+            processes++;
+            if (queues.get(destination).isEmpty()) {
+                queues.remove(destination);
+            } else {
+                waiting.add(destination);
+            }
+            schedule();
+        }
+    }
+    
+    /**
+     * Runs a single <code>lp</code> for one or more jobs
+     */
+    private class Batch implements Runnable {
+        
+        private final String destination;
+        private final ArrayList<Job> jobs;
+        private final String command;
+        
+        Batch(String destination, ArrayList<Job> jobs, String command) {
+            this.destination = destination;
+            this.jobs = jobs;
+            this.command = command;
+        }
+        
+        public void run() {
+            long[] sizes = new long[jobs.size()];
+            IOException error = null;
+            try {
+                runCommand(sizes);
+            } catch (IOException ex) {
+                error = ex;
+            } finally {
+                finished(destination);
+            }
+            
+            for (int i = 0; i < jobs.size(); i++) {
+                try {
+                    if (error == null) {
+                        jobs.get(i).listener.sent(sizes[i]);
+                    } else {
+                        jobs.get(i).listener.failed(error);
+                    }
+                } catch (RuntimeException ex) {
+                    LogIt.log(Level.SEVERE, "Send listener error.", ex);
+                }
+            }
+        }
+        
+        private void runCommand(long[] sizes) throws IOException {
+            ProcessBuilder builder = new ProcessBuilder(command, "-d", destination, "-o", "raw");
+            builder.redirectErrorStream(true);
+            LogIt.log("Running " + command + " for " + jobs.size() + " job(s) to \"" + destination + "\"");
+            Process pr = builder.start();
+            
+            try {
+                OutputStream out = pr.getOutputStream();
+                try {
+                    for (int i = 0; i < jobs.size(); i++) {
+                        sizes[i] = FileUtilities.copyStream(jobs.get(i).data, out);
+                    }
+                } finally {
+                    out.close();
+                }
+                
+                String output = readOutput(pr.getInputStream());
+                int exitValue = pr.waitFor();
+                LogIt.log(command + " returned: " + output);
+                if (exitValue != 0) {
+                    throw new IOException(command + " returned a non-zero value (" + exitValue + "). " + output);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for " + command);
+            } finally {
+                pr.destroy();
+            }
+        }
+    }
+    
+    private static String readOutput(InputStream in) throws IOException {
+        BufferedReader buf = new BufferedReader(new InputStreamReader(in));
+        StringBuilder output = new StringBuilder();
+        String line;
+        while ((line = buf.readLine()) != null) {
+            if (output.length() > 0) {
+                output.append('\n');
+            }
+            output.append(line);
+        }
+        return output.toString();
+    }
+    
+    /**
+     * Set the command used to submit jobs. It is run with 
+     * <code>-d &lt;printer&gt; -o raw</code> and given the job data on its 
+     * standard input.
+     * 
+     * Not exposed to the page, since any executable could be named here. It
+     * exists to run against a stand-in <code>lp</code>.
+     * 
+     * @param command The path of <code>lp</code> or a compatible command
+     */
+    public void setCommand(String command) {
+        synchronized (queues) {
+            this.command = command;
+        }
+    }
+    
+    /**
+     * Set how many <code>lp</code> processes may run at once
+     * 
+     * @param maxProcesses The number of processes, at least 1
+     */
+    public void setMaxProcesses(int maxProcesses) {
+        synchronized (queues) {
+            this.maxProcesses = Math.max(1, maxProcesses);
+            schedule();
+        }
+    }
+    
+    /**
+     * @return The number of <code>lp</code> processes run so far
+     */
+    public long getProcessCount() {
+        synchronized (queues) {
+            return processes;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes the base64 payload of a data URI as it is read. The payload is
+ * decoded a block at a time with <code>Base64.decode</code>, so an image or
+ * PDF can be handed to its decoder without first decoding the whole payload
+ * into a separate array.
+ */
+public class Base64DataInputStream extends InputStream {
+    
+    /**
+     * Number of base64 characters decoded at a time
+     */
+    private static final int BLOCK_SIZE = 64 * 1024;
+    
+    private final byte[] source;
+    private final int end;
+    private int next;
+    private byte[] block = new byte[0];
+    private int position;
+    private boolean finished;
+    
+    /**
+     * @param source The array holding the base64 characters
+     * @param off The index of the first character
+     * @param len The number of characters
+     */
+    public Base64DataInputStream(byte[] source, int off, int len) {
+        if (off < 0 || len < 0 || off + len > source.length) {
+            throw new IndexOutOfBoundsException("off=" + off + ", len=" + len + ", size=" + source.length);
+        }
+        this.source = source;
+        this.next = off;
+        this.end = off + len;
+    }
+    
+    /**
+     * Returns the number of bytes the base64 characters in a range decode to
+     * 
+     * @param source The array holding the base64 characters
+     * @param off The index of the first character
+     * @param len The number of characters
+     * @return The decoded length
+     */
+    public static int getDecodedLength(byte[] source, int off, int len) {
+        long digits = 0;
+        for (int i = off; i < off + len; i++) {
+            byte b = source[i];
+            if (b == '=') {
+                break;
+            }
+            if (!isWhiteSpace(b)) {
+                digits++;
+            }
+        }
+        return (int)(digits * 3 / 4);
+    }
+    
+    private static boolean isWhiteSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+    
+    /**
+     * Decode the next block of characters. Blocks are cut after a multiple of
+     * four characters, not counting white space, so no quartet is split.
+     * 
+     * @return false once the payload has been fully decoded
+     */
+    private boolean fill() throws IOException {
+        while (position >= block.length) {
+            if (finished || next >= end) {
+                finished = true;
+                return false;
+            }
+            
+            int start = next;
+            int limit = Math.min(end, start + BLOCK_SIZE);
+            int digits = 0;
+            int cut = start;
+            for (int i = start; i < end && (i < limit || digits % 4 != 0); i++) {
+                byte b = source[i];
+                if (!isWhiteSpace(b)) {
+                    digits++;
+                    if (digits % 4 == 0) {
+                        cut = i + 1;
+                        if (b == '=') {
+                            // Padding ends the payload
+                            finished = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            
+            if (cut == start) {
+                // Fewer than four characters left, which is not a full quartet
+                finished = true;
+                return false;
+            }
+            next = cut;
+            block = Base64.decode(source, start, cut - start, Base64.NO_OPTIONS);
+            position = 0;
+        }
+        return true;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return block[position++] & 0xFF;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int total = 0;
+        while (total < len && fill()) {
+            int count = Math.min(len - total, block.length - position);
+            System.arraycopy(block, position, b, off + total, count);
+            position += count;
+            total += count;
+        }
+        return total == 0 ? -1 : total;
+    }
+    
+    @Override
+    public int available() {
+        return block.length - position;
+    }
+    
+    /**
+     * Reads the rest of the stream into an array
+     * 
+     * @param expectedLength The expected number of bytes left
+     * @return The decoded bytes
+     * @throws IOException 
+     */
+    public byte[] readFully(int expectedLength) throws IOException {
+        byte[] data = new byte[expectedLength];
+        int total = 0;
+        int len;
+        while (total < data.length && (len = read(data, total, data.length - total)) > 0) {
+            total += len;
+        }
+        if (total < data.length) {
+            byte[] trimmed = new byte[total];
+            System.arraycopy(data, 0, trimmed, 0, total);
+            return trimmed;
+        }
+        return data;
+    }
+}
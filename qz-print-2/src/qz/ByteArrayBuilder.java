@@ -25,9 +25,13 @@
 
 package qz;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
 
 /*
  * Provides a simple way and efficient for concatenating byte arrays, similar
@@ -42,11 +46,18 @@ import java.util.ArrayList;
  */
 
 public final class ByteArrayBuilder {
-    private ArrayList<byte[]> buffer;
+    private static final byte[] EMPTY = new byte[0];
+    
+    private byte[] buffer;
     
     private int length = 0;
     
-    private byte[] contents=null;
+    /*
+     * Set when the backing array is also referenced outside this builder,
+     * either because it was adopted from the caller or handed out by
+     * getByteArray(). A shared array is never written to in place.
+     */
+    private boolean shared = false;
 
     /**
      * Gives the number of bytes currently stored in this <code>ByteArrayBuilder</code>
@@ -58,56 +69,93 @@ public final class ByteArrayBuilder {
     }
 
     /**
-     * Creates a new <code>ByteArrayBuilder</code> and sets initial capacity to 10
+     * Creates a new <code>ByteArrayBuilder</code> and sets initial capacity to 
+     * 32 bytes
      */
     public ByteArrayBuilder() {
-        buffer=new ArrayList<byte[]>(10);
+        this(32);
     }
     
     /**
      * Creates a new <code>ByteArrayBuilder</code> and sets initial capacity to 
-     * <code>initialCapacity</code>
+     * <code>initialCapacity</code> bytes
      * 
      * @param initialCapacity the initial capacity of the <code>ByteArrayBuilder</code>
      */
     public ByteArrayBuilder(int initialCapacity){
-        buffer=new ArrayList<byte[]>(initialCapacity);
+        buffer = initialCapacity > 0 ? new byte[initialCapacity] : EMPTY;
     }
 
     /**
-     * Creates a new <code>ByteArrayBuilder</code>, sets initial capacity to 10
-     * and appends <code>initialContents</code>
+     * Creates a new <code>ByteArrayBuilder</code> holding 
+     * <code>initialContents</code>. The array is used as is, without copying,
+     * and is never modified by the <code>ByteArrayBuilder</code>.
      * 
      * @param initialContents the initial contents of the ByteArrayBuilder
      */
     public ByteArrayBuilder(byte[] initialContents) {
-        this();
-        this.append(initialContents);
+        buffer = initialContents;
+        length = initialContents.length;
+        shared = true;
     }
     
     /**
      * Creates a new <code>ByteArrayBuilder</code>, sets initial capacity to 
-     * <code>initialContents</code> and appends <code>initialContents</code>
+     * <code>initialCapacity</code> bytes and appends <code>initialContents</code>
      * 
      * @param initialContents the initial contents of the <code>ByteArrayBuilder</code>
      * @param initialCapacity the initial capacity of the <code>ByteArrayBuilder</code>
      */
     public ByteArrayBuilder(byte[] initialContents, int initialCapacity){
-        this(initialCapacity);
+        this(Math.max(initialCapacity, initialContents.length));
         this.append(initialContents);
     }
     
-    private void resetContents(){
-        contents=null;
+    /**
+     * Makes sure at least <code>minCapacity</code> bytes can be held without
+     * reallocating the backing array
+     * 
+     * @param minCapacity the required capacity
+     */
+    public void ensureCapacity(int minCapacity) {
+        if (minCapacity < 0) {
+            throw new OutOfMemoryError("ByteArrayBuilder capacity overflow");
+        }
+        if (shared || minCapacity > buffer.length) {
+            int newCapacity = buffer.length + (buffer.length >> 1) + 16;
+            if (newCapacity < minCapacity || newCapacity < 0) {
+                newCapacity = minCapacity;
+            }
+            byte[] grown = new byte[newCapacity];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+            shared = false;
+        }
     }
     
     /**
-     * Empties the <code>ByteArrayBuilder</code>
+     * Empties the <code>ByteArrayBuilder</code>. The backing array is kept for
+     * reuse unless it is shared.
      */
     public void clear(){
         length=0;
-        this.resetContents();
-        buffer.clear();
+        if (shared) {
+            buffer = EMPTY;
+            shared = false;
+        }
+    }
+
+    /**
+     * Truncates the <code>ByteArrayBuilder</code> to its first
+     * <code>newLength</code> bytes
+     * 
+     * @param newLength
+     */
+    public void setLength(int newLength) {
+        if (newLength < 0 || newLength > length) {
+            throw new IndexOutOfBoundsException("newLength=" + newLength + ", length=" + length);
+        }
+        length = newLength;
     }
     
     /**
@@ -118,9 +166,60 @@ public final class ByteArrayBuilder {
      * @return this <code>ByteArrayBuilder</code>
      */
     public final ByteArrayBuilder append(byte[] bs){
-        this.resetContents();
-        length+=bs.length;
-        buffer.add(bs);
+        return append(bs, 0, bs.length);
+    }
+    
+    /**
+     * Appends <code>len</code> bytes of <code>bs</code>, starting at 
+     * <code>off</code>, to this <code>ByteArrayBuilder</code>. 
+     * Returns this same object to allow chaining calls
+     * 
+     * @param bs
+     * @param off
+     * @param len
+     * @return this <code>ByteArrayBuilder</code>
+     */
+    public final ByteArrayBuilder append(byte[] bs, int off, int len){
+        if (off < 0 || len < 0 || off + len > bs.length) {
+            throw new IndexOutOfBoundsException("off=" + off + ", len=" + len + ", size=" + bs.length);
+        }
+        if (len > 0) {
+            ensureCapacity(length + len);
+            System.arraycopy(bs, off, buffer, length, len);
+            length+=len;
+        }
+        return this;
+    }
+    
+    /**
+     * Appends a single byte to this <code>ByteArrayBuilder</code>.
+     * Returns this same object to allow chaining calls
+     * 
+     * @param b
+     * @return this <code>ByteArrayBuilder</code>
+     */
+    public final ByteArrayBuilder append(byte b){
+        ensureCapacity(length + 1);
+        buffer[length++] = b;
+        return this;
+    }
+    
+    /**
+     * Appends <code>len</code> bytes of <code>bs</code>, starting at 
+     * <code>off</code>, as upper case ASCII hex digits. 
+     * Returns this same object to allow chaining calls
+     * 
+     * @param bs
+     * @param off
+     * @param len
+     * @return this <code>ByteArrayBuilder</code>
+     */
+    public final ByteArrayBuilder appendHex(byte[] bs, int off, int len){
+        if (off < 0 || len < 0 || off + len > bs.length) {
+            throw new IndexOutOfBoundsException("off=" + off + ", len=" + len + ", size=" + bs.length);
+        }
+        ensureCapacity(length + 2 * len);
+        length = ByteUtilities.encodeHex(bs, off, len, buffer, length);
         return this;
     }
     
@@ -150,24 +249,206 @@ public final class ByteArrayBuilder {
         return append(s.toString(), c);
     }
     
+    /**
+     * Returns the byte at <code>index</code>
+     * 
+     * @param index
+     * @return the byte at <code>index</code>
+     */
+    public byte byteAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index=" + index + ", length=" + length);
+        }
+        return buffer[index];
+    }
+    
+    /**
+     * Finds the first occurrence of <code>pattern</code> in the contents
+     * 
+     * @param pattern the bytes to look for
+     * @return the index of the first match, or -1 if there is none
+     */
+    public int indexOf(byte[] pattern) {
+        return indexOf(pattern, 0);
+    }
+    
+    /**
+     * Finds the first occurrence of <code>pattern</code> in the contents, 
+     * starting the search at <code>fromIndex</code>
+     * 
+     * @param pattern the bytes to look for
+     * @param fromIndex the index to start searching from
+     * @return the index of the first match, or -1 if there is none
+     */
+    public int indexOf(byte[] pattern, int fromIndex) {
+        if (fromIndex < 0) {
+            fromIndex = 0;
+        }
+        int last = length - pattern.length;
+        if (pattern.length == 0) {
+            return fromIndex <= length ? fromIndex : -1;
+        }
+        byte first = pattern[0];
+        outer:
+        for (int i = fromIndex; i <= last; i++) {
+            if (buffer[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < pattern.length; j++) {
+                if (buffer[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+    
+    /**
+     * Finds the last occurrence of <code>pattern</code> in the contents
+     * 
+     * @param pattern the bytes to look for
+     * @return the index of the last match, or -1 if there is none
+     */
+    public int lastIndexOf(byte[] pattern) {
+        if (pattern.length == 0) {
+            return length;
+        }
+        byte first = pattern[0];
+        outer:
+        for (int i = length - pattern.length; i >= 0; i--) {
+            if (buffer[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < pattern.length; j++) {
+                if (buffer[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+    
+    /**
+     * Finds the first match of a <code>ByteSearcher</code> in the contents, 
+     * starting the search at <code>fromIndex</code>
+     * 
+     * @param searcher the searcher holding the pattern to look for
+     * @param fromIndex the index to start searching from
+     * @return the index of the first match, or -1 if there is none
+     */
+    public int indexOf(ByteSearcher searcher, int fromIndex) {
+        return searcher.indexOf(buffer, fromIndex, length);
+    }
+    
+    /**
+     * Finds the last match of a <code>ByteSearcher</code> in the contents
+     * 
+     * @param searcher the searcher holding the pattern to look for
+     * @return the index of the last match, or -1 if there is none
+     */
+    public int lastIndexOf(ByteSearcher searcher) {
+        return searcher.lastIndexOf(buffer, 0, length);
+    }
+    
+    private void checkRange(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start=" + start + ", end=" + end + ", length=" + length);
+        }
+    }
+    
+    /**
+     * Returns a copy of the bytes from <code>start</code> (inclusive) to 
+     * <code>end</code> (exclusive)
+     * 
+     * @param start
+     * @param end
+     * @return a new array holding the requested range
+     */
+    public byte[] subArray(int start, int end) {
+        checkRange(start, end);
+        byte[] sub = new byte[end - start];
+        System.arraycopy(buffer, start, sub, 0, sub.length);
+        return sub;
+    }
+    
+    /**
+     * Returns a read-only <code>ByteBuffer</code> view of the bytes from 
+     * <code>start</code> (inclusive) to <code>end</code> (exclusive). No bytes
+     * are copied; the view is only valid until the next modification of this
+     * <code>ByteArrayBuilder</code>.
+     * 
+     * @param start
+     * @param end
+     * @return a view of the requested range
+     */
+    public ByteBuffer slice(int start, int end) {
+        checkRange(start, end);
+        return ByteBuffer.wrap(buffer, start, end - start).slice().asReadOnlyBuffer();
+    }
+    
+    /**
+     * Returns a read-only <code>ByteBuffer</code> view of the full contents, 
+     * without copying
+     * 
+     * @return a view of the contents
+     */
+    public ByteBuffer asByteBuffer() {
+        return slice(0, length);
+    }
+    
+    /**
+     * Returns an <code>InputStream</code> over the current contents of this
+     * <code>ByteArrayBuilder</code>. The backing array is read in place, so
+     * no copy of the contents is made.
+     * 
+     * @return An <code>InputStream</code> of the contents
+     */
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(buffer, 0, length);
+    }
+    
+    /**
+     * Returns an <code>InputStream</code> over the bytes from 
+     * <code>start</code> (inclusive) to <code>end</code> (exclusive), without 
+     * copying
+     * 
+     * @param start
+     * @param end
+     * @return An <code>InputStream</code> of the requested range
+     */
+    public InputStream getInputStream(int start, int end) {
+        checkRange(start, end);
+        return new ByteArrayInputStream(buffer, start, end - start);
+    }
+    
+    /**
+     * Writes the full contents of this <code>ByteArrayBuilder</code> to 
+     * <code>out</code>
+     * 
+     * @param out
+     * @throws IOException 
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, length);
+    }
+    
     /**
      * Returns the full contents of this <code>ByteArrayBuilder</code> as
-     * a single <code>byte</code> array. The result is cached, so multiple
-     * calls with no changes to the contents of the <code>ByteArrayBuilder</code>
-     * are efficient.
+     * a single <code>byte</code> array. The backing array is trimmed to size 
+     * at most once and then returned as is, so multiple calls with no changes 
+     * to the contents of the <code>ByteArrayBuilder</code> are efficient.
      * 
      * @return The contents of this <code>ByteArrayBuilder</code> as a single <code>byte</code> array
      */
     public byte[] getByteArray(){
-        if(contents==null)
-        {
-            contents=new byte[this.getLength()];
-            int pos=0;
-            for (byte[] bs:buffer){
-                System.arraycopy(bs, 0, contents, pos, bs.length);
-                pos+=bs.length;
-            }
+        if (buffer.length != length) {
+            byte[] trimmed = new byte[length];
+            System.arraycopy(buffer, 0, trimmed, 0, length);
+            buffer = trimmed;
         }
-        return contents;
+        shared = true;
+        return buffer;
     }
 }
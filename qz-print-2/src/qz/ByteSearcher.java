@@ -0,0 +1,211 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+/**
+ * Searches byte arrays for a fixed pattern using the Boyer-Moore-Horspool
+ * algorithm. The skip tables are built once per pattern, so a searcher should
+ * be kept and reused for repeated searches.
+ * 
+ * A searcher also keeps a position for searching a buffer that grows, such as
+ * a <code>ByteArrayBuilder</code> being filled from a stream. Each call to 
+ * <code>findNext</code> only examines the bytes added since the last call,
+ * plus the few bytes a match could straddle.
+ */
+public class ByteSearcher {
+    
+    private final byte[] pattern;
+    private final int[] skip = new int[256];
+    private final int[] skipBack = new int[256];
+    private int position = 0;
+    
+    /**
+     * @param pattern The bytes to search for. Must not be empty.
+     */
+    public ByteSearcher(byte[] pattern) {
+        if (pattern == null || pattern.length == 0) {
+            throw new IllegalArgumentException("The search pattern can't be empty");
+        }
+        this.pattern = pattern.clone();
+        
+        int m = pattern.length;
+        for (int i = 0; i < 256; i++) {
+            skip[i] = m;
+            skipBack[i] = m;
+        }
+        // Distance from the last byte of the window to the nearest occurrence
+        for (int i = 0; i < m - 1; i++) {
+            skip[pattern[i] & 0xFF] = m - 1 - i;
+        }
+        // Distance from the first byte of the window, when searching backwards
+        for (int i = m - 1; i > 0; i--) {
+            skipBack[pattern[i] & 0xFF] = i;
+        }
+    }
+    
+    /**
+     * @return The length of the pattern
+     */
+    public int getPatternLength() {
+        return pattern.length;
+    }
+    
+    /**
+     * Finds the first match starting at or after <code>from</code> and ending
+     * at or before <code>to</code>
+     * 
+     * @param data The bytes to search
+     * @param from The first index a match may start at
+     * @param to The end (exclusive) of the range to search
+     * @return The index of the match, or -1 if there is none
+     */
+    public int indexOf(byte[] data, int from, int to) {
+        int m = pattern.length;
+        int last = m - 1;
+        byte tail = pattern[last];
+        int i = Math.max(from, 0);
+        int end = to - m;
+        
+        if (m == 1) {
+            for (; i <= end; i++) {
+                if (data[i] == tail) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        while (i <= end) {
+            byte b = data[i + last];
+            if (b == tail) {
+                int j = last - 1;
+                while (data[i + j] == pattern[j]) {
+                    if (j == 0) {
+                        return i;
+                    }
+                    j--;
+                }
+            }
+            i += skip[b & 0xFF];
+        }
+        return -1;
+    }
+    
+    /**
+     * Finds the last match starting at or after <code>from</code> and ending
+     * at or before <code>to</code>
+     * 
+     * @param data The bytes to search
+     * @param from The first index a match may start at
+     * @param to The end (exclusive) of the range to search
+     * @return The index of the match, or -1 if there is none
+     */
+    public int lastIndexOf(byte[] data, int from, int to) {
+        int m = pattern.length;
+        byte head = pattern[0];
+        int start = Math.max(from, 0);
+        int i = to - m;
+        
+        while (i >= start) {
+            byte b = data[i];
+            if (b == head) {
+                int j = 1;
+                while (j < m && data[i + j] == pattern[j]) {
+                    j++;
+                }
+                if (j == m) {
+                    return i;
+                }
+            }
+            i -= skipBack[b & 0xFF];
+        }
+        return -1;
+    }
+    
+    /**
+     * Finds every match in <code>data</code>, including overlapping ones
+     * 
+     * @param data The bytes to search
+     * @return The indices of all matches, in order
+     */
+    public int[] indicesOf(byte[] data) {
+        int[] indices = new int[8];
+        int count = 0;
+        int i = indexOf(data, 0, data.length);
+        while (i >= 0) {
+            if (count == indices.length) {
+                int[] grown = new int[count * 2];
+                System.arraycopy(indices, 0, grown, 0, count);
+                indices = grown;
+            }
+            indices[count++] = i;
+            i = indexOf(data, i + 1, data.length);
+        }
+        
+        int[] result = new int[count];
+        System.arraycopy(indices, 0, result, 0, count);
+        return result;
+    }
+    
+    /**
+     * Finds the next match in a buffer that may have grown since the last
+     * call. Searching resumes where the previous call stopped, so bytes are
+     * only examined again if a match could still start in them. After a
+     * match, the search resumes after the end of the match.
+     * 
+     * @param data The buffer to search. Its contents before the current 
+     * position must not have changed.
+     * @return The index of the match, or -1 if there is none yet
+     */
+    public int findNext(ByteArrayBuilder data) {
+        int index = data.indexOf(this, position);
+        if (index >= 0) {
+            position = index + pattern.length;
+        } else {
+            position = Math.max(position, data.getLength() - pattern.length + 1);
+        }
+        return index;
+    }
+    
+    /**
+     * @return The index <code>findNext</code> resumes searching from
+     */
+    public int getPosition() {
+        return position;
+    }
+    
+    /**
+     * Set the index <code>findNext</code> resumes searching from
+     * 
+     * @param position 
+     */
+    public void setPosition(int position) {
+        this.position = Math.max(position, 0);
+    }
+    
+    /**
+     * Start searching from the beginning again, as for a cleared buffer
+     */
+    public void reset() {
+        position = 0;
+    }
+}
@@ -21,12 +21,10 @@
  */
 package qz;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.logging.Level;
 
@@ -45,36 +43,69 @@ public class ByteUtilities {
      * This is expecially useful for special characters that are appended via
      * JavaScript, specifically the "\0" or <code>NUL</code> character, which
      * will early terminate a JavaScript <code>String</code>.
+     * 
+     * Accepts either plain pairs of digits (<code>"1B40"</code>) or values
+     * separated by <code>x</code> (<code>"x1Bx40"</code>).
      *
      * @param s
      * @return
      * @throws NumberFormatException
      */
     public static byte[] hexStringToByteArray(String s) throws NumberFormatException {
-        byte[] data = new byte[0];
-        if (s != null && s.length() > 0) {
-            String[] split;
-            if (s.length() > 2) {
-                if (s.length() >= 3 && s.contains("x")) {
-                    s = s.startsWith("x") ? s.substring(1) : s;
-                    s = s.endsWith("x") ? s.substring(0, s.length() - 1) : s;
-                    split = s.split("x");
-                } else {
-                    split = s.split("(?<=\\G..)");
-                }
-
-                data = new byte[split.length];
-                for (int i = 0; i < split.length; i++) {
-                    data[i] = Byte.parseByte(split[i], 16);
-                }
-            } else if (s.length() == 2) {
-                data = new byte[]{Byte.parseByte(s)};
+        if (s == null || s.length() < 2) {
+            return new byte[0];
+        }
+        
+        if (s.indexOf('x') < 0) {
+            byte[] data = new byte[(s.length() + 1) / 2];
+            decodeHex(s, 0, s.length(), data, 0);
+            return data;
+        }
+        
+        // One value per x separated token
+        int start = s.startsWith("x") ? 1 : 0;
+        int end = Math.max(start, s.endsWith("x") ? s.length() - 1 : s.length());
+        int count = 1;
+        for (int i = s.indexOf('x', start); i >= 0 && i < end; i = s.indexOf('x', i + 1)) {
+            count++;
+        }
+        byte[] data = new byte[count];
+        int pos = 0;
+        int tokenStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || s.charAt(i) == 'x') {
+                data[pos++] = (byte)parseHexValue(s, tokenStart, i);
+                tokenStart = i + 1;
             }
         }
         return data;
     }
 
     final protected static char[] HEXES_ARRAY = "0123456789ABCDEF".toCharArray();
+    
+    /**
+     * The ASCII bytes of each hex digit, indexed by nibble
+     */
+    private static final byte[] HEX_DIGITS = {
+        '0', '1', '2', '3', '4', '5', '6', '7', 
+        '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+    
+    /**
+     * The value of each ASCII hex digit, or -1 for any other character
+     */
+    private static final byte[] HEX_VALUES = new byte[128];
+    
+    static {
+        Arrays.fill(HEX_VALUES, (byte)-1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte)i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['A' + i] = (byte)(10 + i);
+            HEX_VALUES['a' + i] = (byte)(10 + i);
+        }
+    }
 
     public static String bytesToHex(byte[] bytes) {
         char[] hexChars = new char[bytes.length * 2];
@@ -86,41 +117,99 @@ public class ByteUtilities {
         }
         return new String(hexChars);
     }
+    
+    /**
+     * Writes <code>len</code> bytes of <code>src</code>, starting at 
+     * <code>off</code>, as upper case ASCII hex digits into <code>dest</code>
+     * 
+     * @param src The bytes to encode
+     * @param off The first byte to encode
+     * @param len The number of bytes to encode
+     * @param dest The array to write to, with room for <code>2 * len</code>
+     * bytes at <code>destOff</code>
+     * @param destOff The index in <code>dest</code> to start writing at
+     * @return The index in <code>dest</code> after the last digit written
+     */
+    public static int encodeHex(byte[] src, int off, int len, byte[] dest, int destOff) {
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            int v = src[i] & 0xFF;
+            dest[destOff++] = HEX_DIGITS[v >>> 4];
+            dest[destOff++] = HEX_DIGITS[v & 0x0F];
+        }
+        return destOff;
+    }
+    
+    /**
+     * Decodes pairs of hex digits from <code>s</code>, between 
+     * <code>start</code> (inclusive) and <code>end</code> (exclusive), into
+     * <code>dest</code>. An odd digit at the end is decoded as a byte on its
+     * own.
+     * 
+     * @param s The hex digits
+     * @param start The index of the first digit
+     * @param end The end (exclusive) of the digits
+     * @param dest The array to write to, with room for 
+     * <code>(end - start + 1) / 2</code> bytes at <code>destOff</code>
+     * @param destOff The index in <code>dest</code> to start writing at
+     * @return The index in <code>dest</code> after the last byte written
+     * @throws NumberFormatException if a character isn't a hex digit
+     */
+    public static int decodeHex(CharSequence s, int start, int end, byte[] dest, int destOff) throws NumberFormatException {
+        int i = start;
+        for (; i + 1 < end; i += 2) {
+            dest[destOff++] = (byte)(hexValue(s, i) << 4 | hexValue(s, i + 1));
+        }
+        if (i < end) {
+            dest[destOff++] = (byte)hexValue(s, i);
+        }
+        return destOff;
+    }
+    
+    /**
+     * Parses the hex digits between <code>start</code> and <code>end</code> 
+     * as a single unsigned byte value
+     */
+    private static int parseHexValue(CharSequence s, int start, int end) throws NumberFormatException {
+        if (start == end) {
+            throw new NumberFormatException("Empty hex value at index " + start);
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            value = value << 4 | hexValue(s, i);
+            if (value > 0xFF) {
+                throw new NumberFormatException("Hex value out of range: \"" + s.subSequence(start, end) + "\"");
+            }
+        }
+        return value;
+    }
+    
+    private static int hexValue(CharSequence s, int index) throws NumberFormatException {
+        char c = s.charAt(index);
+        int v = c < 128 ? HEX_VALUES[c] : -1;
+        if (v < 0) {
+            throw new NumberFormatException("Invalid hex digit '" + c + "' at index " + index);
+        }
+        return v;
+    }
 
     /**
      * Iterates through byte array finding matches of a sublist of bytes.
-     * Returns an array of positions. TODO: Make this natively Iterable.
+     * Returns an array of positions, including overlapping matches. Use a
+     * <code>ByteSearcher</code> directly to search with the same pattern
+     * more than once.
      *
      * @param array
      * @param sublist
      * @return
      */
     public static int[] indicesOfSublist(byte[] array, byte[] sublist) {
-        LinkedList<Integer> indexes = new LinkedList<Integer>();
-
         if (array == null || sublist == null || array.length == 0
                 || sublist.length == 0 || sublist.length > array.length) {
             return new int[0];
         }
 
-        // Find instances of byte list
-        outer:
-        for (int i = 0; i < array.length - sublist.length + 1; i++) {
-            for (int j = 0; j < sublist.length; j++) {
-                if (array[i + j] != sublist[j]) {
-                    continue outer;
-                }
-            }
-            indexes.add(i);
-        }
-
-        // Convert to primitive type
-        int[] int_array = new int[indexes.size()];
-        for (int i = 0; i < indexes.size(); i++) {
-            int_array[i] = indexes.get(i);
-        }
-
-        return int_array;
+        return new ByteSearcher(sublist).indicesOf(array);
     }
 
     /**
@@ -131,12 +220,10 @@ public class ByteUtilities {
      * supplied <code>count</code> parameter)
      *
      * This is useful for large print batches that need to be split up (for
-     * example) after the P1 or ^XO command has been issued.
-     *
-     * TODO: A rewrite of this would be a proper <code>Iteratable</code>
-     * interface paired with an <code>Iterator</code> that does this
-     * automatically and would eliminate the need for a
-     * <code>indicesOfSublist()</code> function.
+     * example) after the P1 or ^XO command has been issued. Any data after 
+     * the last <code>pattern</code> is returned as the final element. To split
+     * a file without reading it into memory first, see 
+     * <code>DocumentSplitter</code>.
      *
      * @param src
      * @param pattern
@@ -146,26 +233,22 @@ public class ByteUtilities {
     public static LinkedList<ByteArrayBuilder> splitByteArray(byte[] src, byte[] pattern, int count)
             throws NullPointerException, IndexOutOfBoundsException, ArrayStoreException {
         LinkedList<ByteArrayBuilder> byteArrayList = new LinkedList<ByteArrayBuilder>();
-        int[] split = indicesOfSublist(src, pattern);
+        ByteSearcher searcher = new ByteSearcher(pattern);
         count = count < 1 ? 1 : count;
-        int _count = 1;
-        int prev = 0;
-        ByteArrayBuilder b = new ByteArrayBuilder();
-        for (int i : split) {
-            byte[] temp = new byte[i - prev + pattern.length];
-            System.arraycopy(src, prev, temp, 0, temp.length);
-            b.append(temp);
-            if (_count < count) {
-                _count++;
-            } else {
-                byteArrayList.add(b);
-                b = new ByteArrayBuilder();
-                _count = 1;
+        int _count = 0;
+        int start = 0;
+        int i = searcher.indexOf(src, 0, src.length);
+        while (i >= 0) {
+            int next = i + pattern.length;
+            if (++_count == count) {
+                byteArrayList.add(new ByteArrayBuilder(next - start).append(src, start, next - start));
+                start = next;
+                _count = 0;
             }
-            prev = i + pattern.length;
+            i = searcher.indexOf(src, next, src.length);
         }
-        if (!byteArrayList.contains(b)) {
-            byteArrayList.add(b);
+        if (start < src.length || byteArrayList.isEmpty()) {
+            byteArrayList.add(new ByteArrayBuilder(src.length - start).append(src, start, src.length - start));
         }
         return byteArrayList;
     }
@@ -199,8 +282,6 @@ public class ByteUtilities {
         return hex;
     }
 
-    private static final String HEXES = "0123456789ABCDEF";
-
     /*
      * Converts an integer array (<code>int[]</code>) to a String representation
      * of a hexadecimal array.
@@ -212,11 +293,13 @@ public class ByteUtilities {
         if (raw == null) {
             return null;
         }
-        final StringBuilder hex = new StringBuilder(2 * raw.length);
+        char[] hex = new char[2 * raw.length];
+        int pos = 0;
         for (final int i : raw) {
-            hex.append(HEXES.charAt((i & 0xF0) >> 4)).append(HEXES.charAt((i & 0x0F)));
+            hex[pos++] = HEXES_ARRAY[(i & 0xF0) >> 4];
+            hex[pos++] = HEXES_ARRAY[i & 0x0F];
         }
-        return hex.toString();
+        return new String(hex);
     }
 
     public static boolean isBlank(Object o) {
@@ -238,6 +321,62 @@ public class ByteUtilities {
         return path.startsWith("data:application/pdf;base64,");
     }
     
+    /**
+     * Longest data URI header looked for before the payload
+     */
+    private static final int MAX_DATA_URI_HEADER = 256;
+    
+    /**
+     * Returns the header of a data URI, up to and including the comma before
+     * its payload, without decoding the payload
+     * 
+     * @param uri The ASCII bytes of the URI
+     * @return The header, or null if <code>uri</code> isn't a data URI
+     */
+    public static String getDataUriHeader(byte[] uri) {
+        if (uri.length < 5 || uri[0] != 'd' || uri[1] != 'a' || uri[2] != 't' 
+                || uri[3] != 'a' || uri[4] != ':') {
+            return null;
+        }
+        int limit = Math.min(uri.length, MAX_DATA_URI_HEADER);
+        for (int i = 5; i < limit; i++) {
+            if (uri[i] == ',') {
+                char[] header = new char[i + 1];
+                for (int j = 0; j <= i; j++) {
+                    header[j] = (char)(uri[j] & 0xFF);
+                }
+                return new String(header);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Opens a stream that decodes the base64 payload of a data URI as it is
+     * read
+     * 
+     * @param uri The ASCII bytes of the URI
+     * @param header The header of the URI, from <code>getDataUriHeader</code>
+     * @return The decoding stream
+     */
+    public static Base64DataInputStream openBase64Data(byte[] uri, String header) {
+        return new Base64DataInputStream(uri, header.length(), uri.length - header.length());
+    }
+    
+    /**
+     * Decodes the base64 payload of a data URI into an array of exactly the
+     * decoded length
+     * 
+     * @param uri The ASCII bytes of the URI
+     * @param header The header of the URI, from <code>getDataUriHeader</code>
+     * @return The decoded payload
+     * @throws IOException 
+     */
+    public static byte[] decodeBase64Data(byte[] uri, String header) throws IOException {
+        int length = Base64DataInputStream.getDecodedLength(uri, header.length(), uri.length - header.length());
+        return openBase64Data(uri, header).readFully(length);
+    }
+    
     /**
      * Reads a binary file (i.e. PDF) from URL to a ByteBuffer. This is later
      * appended to the applet, but needs a renderer capable of printing it to
@@ -249,32 +388,26 @@ public class ByteUtilities {
      */
     public static byte[] readBinaryFile(String file) throws IOException, MalformedURLException {
         if (isBase64PDF(file)) {
-            return Base64.decode(file.split(",")[1]);
+            byte[] uri = file.getBytes("US-ASCII");
+            return decodeBase64Data(uri, getDataUriHeader(uri));
         } else {
-            URLConnection con = new URL(file).openConnection();
-            InputStream in = con.getInputStream();
-            int size = con.getContentLength();
-
-            ByteArrayOutputStream out;
-            if (size != -1) {
-                out = new ByteArrayOutputStream(size);
-            } else {
-                 // Pick some appropriate size
-                out = new ByteArrayOutputStream(20480);
-            }
-
-            byte[] buffer = new byte[512];
-            while (true) {
-                int len = in.read(buffer);
-                if (len == -1) {
-                    break;
-                }
-                out.write(buffer, 0, len);
-            }
-            in.close();
-            out.close();
-
-            return out.toByteArray();
+            return ResourceCache.getDefault().fetch(file);
+        }
+    }
+    
+    /**
+     * Reads a binary file (i.e. PDF) from URL or local path to a ByteBuffer. 
+     * Large local files are memory-mapped rather than read onto the heap.
+     * @param file
+     * @return
+     * @throws IOException
+     * @throws MalformedURLException 
+     */
+    public static ByteBuffer readBinaryBuffer(String file) throws IOException, MalformedURLException {
+        if (isBase64PDF(file)) {
+            return ByteBuffer.wrap(readBinaryFile(file));
+        } else {
+            return FileUtilities.readBuffer(file);
         }
     }
 }
\ No newline at end of file
@@ -21,6 +21,9 @@
  */
 package qz;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import javax.print.PrintException;
 import javax.print.PrintService;
 
@@ -43,9 +46,27 @@ public class DebugPrinter implements Printer {
         LogIt.log("DebugPrinter printing:\n" + new String(data.getByteArray()));
     }
     
+    public void printRaw(InputStream data) throws PrintException {
+        LogIt.log("DebugPrinter printing:\n" + readStream(data));
+    }
+    
     public void printAlternate(ByteArrayBuilder data) throws PrintException {
         LogIt.log("DebugPrinter alternate printing:\n" + new String(data.getByteArray()));
     }
+    
+    public void printAlternate(InputStream data) throws PrintException {
+        LogIt.log("DebugPrinter alternate printing:\n" + readStream(data));
+    }
+    
+    private String readStream(InputStream data) throws PrintException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            FileUtilities.copyStream(data, out);
+        } catch (IOException ex) {
+            throw new PrintException(ex);
+        }
+        return new String(out.toByteArray());
+    }
 
     public boolean ready() {
         return true;
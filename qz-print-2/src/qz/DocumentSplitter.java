@@ -0,0 +1,192 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Splits a raw file into groups of documents while it is being read. 
+ * Documents end with a literal byte marker, such as <code>^XZ</code> for ZPL
+ * or <code>P1</code> for EPL. Only the group being filled and the unread 
+ * part of the last chunk are held in memory, so very large batch files can
+ * be split without loading them.
+ */
+public class DocumentSplitter {
+    
+    private static final int CHUNK_SIZE = 64 * 1024;
+    
+    private final String url;
+    private final ByteSearcher marker;
+    private final Charset charset;
+    private final int documentsPerGroup;
+    private InputStream in;
+    private byte[] chunk;
+    private ByteArrayBuilder buffer;
+    private int start;
+    private int found;
+    private boolean finished;
+    private int groups;
+    
+    /**
+     * @param url The file to split
+     * @param marker The bytes that end each document
+     * @param charset The charset of the file
+     * @param documentsPerGroup The number of documents returned together
+     */
+    public DocumentSplitter(String url, byte[] marker, Charset charset, int documentsPerGroup) {
+        this.url = url;
+        this.marker = new ByteSearcher(marker);
+        this.charset = charset;
+        this.documentsPerGroup = Math.max(1, documentsPerGroup);
+    }
+    
+    /**
+     * Open the file for reading
+     * 
+     * @throws IOException 
+     */
+    public void open() throws IOException {
+        in = FileUtilities.openStream(url);
+        chunk = new byte[CHUNK_SIZE];
+        buffer = new ByteArrayBuilder(CHUNK_SIZE);
+        marker.reset();
+        start = 0;
+        found = 0;
+        finished = false;
+        groups = 0;
+    }
+    
+    /**
+     * Read the next group of documents. Each group ends with the marker of its
+     * last document, except for a trailing remainder of the file without a
+     * marker, which is returned as is. A remainder of only whitespace is
+     * dropped.
+     * 
+     * @return The next group, or null once the file has been read
+     * @throws IOException 
+     */
+    public ByteArrayBuilder next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        
+        while (true) {
+            while (found < documentsPerGroup && marker.findNext(buffer) >= 0) {
+                found++;
+            }
+            
+            if (found == documentsPerGroup) {
+                // The next group starts where this one ends, the searcher
+                // carries on from there
+                int end = marker.getPosition();
+                ByteArrayBuilder group = new ByteArrayBuilder(buffer.subArray(start, end));
+                start = end;
+                found = 0;
+                groups++;
+                return group;
+            }
+            
+            int len = in.read(chunk);
+            if (len == -1) {
+                finished = true;
+                ByteArrayBuilder remainder = start == 0 ? buffer : new ByteArrayBuilder(buffer.subArray(start, buffer.getLength()));
+                buffer = null;
+                if (isBlank(remainder)) {
+                    if (remainder.getLength() > 0) {
+                        LogIt.log("Dropping " + remainder.getLength() + " bytes of whitespace after the last document");
+                    }
+                    return null;
+                }
+                groups++;
+                return remainder;
+            }
+            compact();
+            buffer.append(chunk, 0, len);
+        }
+    }
+    
+    /**
+     * Drop the groups already returned from the front of the buffer once they
+     * take up more than half of it, so the unread part is only moved now and
+     * then rather than after every group
+     */
+    private void compact() {
+        int length = buffer.getLength();
+        if (start == 0 || start <= length / 2) {
+            return;
+        }
+        byte[] unread = buffer.subArray(start, length);
+        buffer.clear();
+        buffer.append(unread);
+        marker.setPosition(marker.getPosition() - start);
+        start = 0;
+    }
+    
+    private static boolean isBlank(ByteArrayBuilder data) {
+        for (int i = 0; i < data.getLength(); i++) {
+            byte b = data.byteAt(i);
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * @return The charset of the file
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+    
+    /**
+     * @return The file being split
+     */
+    public String getUrl() {
+        return url;
+    }
+    
+    /**
+     * @return The number of groups returned so far
+     */
+    public int getGroupCount() {
+        return groups;
+    }
+    
+    /**
+     * Close the file
+     */
+    public void close() {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                LogIt.log(ex);
+            }
+            in = null;
+        }
+        chunk = null;
+        buffer = null;
+    }
+}
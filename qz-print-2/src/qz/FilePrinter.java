@@ -24,6 +24,7 @@ package qz;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.logging.Level;
 import javax.print.PrintException;
 import javax.print.PrintService;
@@ -85,7 +86,7 @@ public class FilePrinter implements Printer {
         
         try {
              FileOutputStream fos = new FileOutputStream(outputPath);
-             fos.write(data.getByteArray());
+             data.writeTo(fos);
              fos.close();
         } catch (FileNotFoundException ex) {
             LogIt.log(ex);
@@ -95,10 +96,32 @@ public class FilePrinter implements Printer {
         
     }
 
+    public void printRaw(InputStream data) throws PrintException {
+        LogIt.log("Printing to file: " + outputPath);
+        
+        try {
+             FileOutputStream fos = new FileOutputStream(outputPath);
+             try {
+                 FileUtilities.copyStream(data, fos);
+             } finally {
+                 fos.close();
+             }
+        } catch (FileNotFoundException ex) {
+            LogIt.log(ex);
+        } catch (IOException ex) {
+            LogIt.log(ex);
+        }
+        
+    }
+
     public void printAlternate(ByteArrayBuilder data) throws PrintException {
         LogIt.log(Level.WARNING, "Cannot use alternate printing on a File printer.");
     }
 
+    public void printAlternate(InputStream data) throws PrintException {
+        LogIt.log(Level.WARNING, "Cannot use alternate printing on a File printer.");
+    }
+
     // Empty function. FilePrinter's should never have a ps set
     public void setPrintService(PrintService ps) {
         
@@ -23,9 +23,19 @@
  */
 package qz;
 
-import java.io.DataInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -79,24 +89,169 @@ public class FileUtilities {
         return false;
     }
     
+    /**
+     * Size of the buffer used when streaming data between streams
+     */
+    public static final int STREAM_BUFFER_SIZE = 8192;
+    
+    /**
+     * Copies an <code>InputStream</code> to an <code>OutputStream</code> using
+     * a small fixed buffer, so the data never has to be held in memory at
+     * once. Neither stream is closed.
+     * 
+     * @param in The stream to read from
+     * @param out The stream to write to
+     * @return The number of bytes copied
+     * @throws IOException 
+     */
+    public static long copyStream(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        long total = 0;
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+            total += len;
+        }
+        return total;
+    }
+    
+    /**
+     * Reads a raw file from URL or local path. HTTP resources go through the 
+     * shared <code>ResourceCache</code>, so the returned array must not be 
+     * modified.
+     * 
+     * @param url
+     * @return
+     * @throws IOException 
+     */
     public static byte[] readRawFile(String url) throws IOException {
-        ByteArrayBuilder rawCmds = new ByteArrayBuilder();
-        byte[] buffer = new byte[512];
-        DataInputStream in = new DataInputStream(new URL(url).openStream());
-        while (true) {
-            int len = in.read(buffer);
-            if (len == -1) {
-                break;
+        return ResourceCache.getDefault().fetch(url);
+    }
+    
+    /**
+     * Reads the full contents of a URL without any caching
+     * 
+     * @param url
+     * @return
+     * @throws IOException 
+     */
+    public static byte[] readURL(String url) throws IOException {
+        URLConnection con = new URL(url).openConnection();
+        int length = con.getContentLength();
+        ByteArrayBuilder rawCmds = new ByteArrayBuilder(length > 0 ? length : STREAM_BUFFER_SIZE);
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        InputStream in = con.getInputStream();
+        try {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                rawCmds.append(buffer, 0, len);
             }
-            byte[] temp = new byte[len];
-            System.arraycopy(buffer, 0, temp, 0, len);
-            rawCmds.append(temp);
+        } finally {
+            in.close();
         }
-        in.close();
 
         return rawCmds.getByteArray();
     }
     
+    /**
+     * Files at least this large are memory-mapped by <code>readBuffer</code>
+     * instead of being read onto the heap
+     */
+    public static final long MAP_THRESHOLD = 8 * 1024 * 1024;
+    
+    /**
+     * Resolves a <code>file:</code> URL or a plain path to a local file
+     * 
+     * @param url
+     * @return The file, or null if <code>url</code> isn't an existing local file
+     */
+    public static File getLocalFile(String url) {
+        File file = null;
+        if (url.regionMatches(true, 0, "file:", 0, 5)) {
+            try {
+                file = new File(new URI(url));
+            } catch (URISyntaxException ex) {
+                // Unencoded file URLs, such as "file:///C:/My Labels/a.zpl"
+                file = new File(url.substring(url.startsWith("file://") ? 7 : 5));
+            } catch (IllegalArgumentException ex) {
+                file = new File(url.substring(url.startsWith("file://") ? 7 : 5));
+            }
+        } else if (url.indexOf("://") < 0) {
+            file = new File(url);
+        }
+        return file != null && file.isFile() ? file : null;
+    }
+    
+    /**
+     * Reads the full contents of a local file through its 
+     * <code>FileChannel</code>, directly into an array sized from the file 
+     * length
+     * 
+     * @param file
+     * @return
+     * @throws IOException 
+     */
+    public static byte[] readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File " + file + " is too large to read into memory");
+            }
+            byte[] data = new byte[(int)size];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new EOFException("File " + file + " was truncated while reading");
+                }
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Opens a URL or local path for reading, bypassing the
+     * <code>ResourceCache</code>. The caller must close the stream.
+     * 
+     * @param url
+     * @return
+     * @throws IOException
+     */
+    public static InputStream openStream(String url) throws IOException {
+        File file = getLocalFile(url);
+        if (file != null) {
+            return new FileInputStream(file);
+        }
+        return new URL(url).openStream();
+    }
+    
+    /**
+     * Reads a URL or local path into a <code>ByteBuffer</code>. Local files of
+     * at least <code>MAP_THRESHOLD</code> bytes are memory-mapped read only,
+     * so they are paged in by the OS instead of being copied onto the heap.
+     * 
+     * @param url
+     * @return A buffer over the contents, positioned at 0
+     * @throws IOException 
+     */
+    public static ByteBuffer readBuffer(String url) throws IOException {
+        File file = getLocalFile(url);
+        if (file != null && file.length() >= MAP_THRESHOLD) {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                // The mapping stays valid after the channel is closed
+                in.close();
+            }
+        }
+        return ByteBuffer.wrap(file != null ? readFile(file) : readRawFile(url));
+    }
+    
     /**
      * Reads an XML file from URL, searches for the tag specified by 
      * <code>dataTag</code> tag name and returns the <code>String</code> value
@@ -116,7 +271,9 @@ public class FileUtilities {
             DocumentBuilder db;
             Document doc;
             db = dbf.newDocumentBuilder();
-            doc = db.parse(url);
+            // Fetched through the resource cache, the URL is kept as the
+            // system id so relative references still resolve
+            doc = db.parse(new ByteArrayInputStream(readRawFile(url)), url);
             doc.getDocumentElement().normalize();
             LogIt.log("Root element " + doc.getDocumentElement().getNodeName());
             NodeList nodeList = doc.getElementsByTagName(dataTag);
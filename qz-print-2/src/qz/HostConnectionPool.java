@@ -0,0 +1,748 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import qz.json.JSONObject;
+
+/**
+ * Sends <code>printToHost</code> jobs over non-blocking connections that
+ * are kept open between jobs. A single thread multiplexes the connections
+ * to every printer with a <code>Selector</code>, so a printer that stops
+ * reading only holds up its own jobs.
+ * 
+ * Each host and port has its own queue. Its jobs are written one after
+ * another over the same connection, in the order they were sent, and each
+ * job's listener is told when it has been written. An idle connection is 
+ * closed after the keep alive time, or as soon as the printer closes it,
+ * since many raw port printers only accept one connection at a time.
+ * 
+ * A job that fails on a reused connection before its first block has been
+ * written is resent once on a new connection, in case the printer dropped 
+ * the idle connection.
+ * 
+ * Status queries are queued the same way, so they reach the printer between
+ * jobs rather than over a second connection.
+ */
+public class HostConnectionPool implements Runnable {
+    
+    /**
+     * Default time to wait for a connection, in milliseconds
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    /**
+     * Default time a job may go without any of it being written, in
+     * milliseconds
+     */
+    public static final int DEFAULT_WRITE_TIMEOUT = 60000;
+    /**
+     * Default time an idle connection is kept open, in milliseconds
+     */
+    public static final int DEFAULT_KEEP_ALIVE = 5000;
+    
+    private static final int BLOCK_SIZE = 32 * 1024;
+    
+    /**
+     * Socket send buffer size. Kept small so the connection only becomes 
+     * writable again as the printer takes data, which is what the write
+     * timeout measures, rather than once an autotuned buffer of several
+     * megabytes has half drained.
+     */
+    private static final int SEND_BUFFER_SIZE = 4 * BLOCK_SIZE;
+    
+    /**
+     * Blocks written to one connection before the others get a turn
+     */
+    private static final int BLOCKS_PER_TURN = 4;
+    
+    private static final HostConnectionPool defaultPool = new HostConnectionPool();
+    
+    /**
+     * A job waiting for or being written to its connection
+     */
+    private static class Send {
+        final String key;
+        final InetSocketAddress address;
+        final InputStream data;
+        final SendListener listener;
+        long sent;
+        long deadline;
+        boolean reused;
+        boolean retried;
+        // The first block is kept until it has been written, so it can be
+        // resent if a reused connection turns out to be closed
+        byte[] firstBlock;
+        boolean replayable = true;
+        // Set for queries, which finish once the reply is complete
+        final ResponseCheck check;
+        final int responseTimeout;
+        ByteArrayBuilder response;
+        
+        Send(String key, InetSocketAddress address, InputStream data, SendListener listener, 
+                ResponseCheck check, int responseTimeout) {
+            this.key = key;
+            this.address = address;
+            this.data = data;
+            this.listener = listener;
+            this.check = check;
+            this.responseTimeout = responseTimeout;
+        }
+    }
+    
+    /**
+     * Decides when the reply to a query is complete
+     */
+    public interface ResponseCheck {
+        /**
+         * @param response The bytes received so far
+         * @return true once the whole reply has been received
+         */
+        public boolean isComplete(ByteArrayBuilder response);
+    }
+    
+    /**
+     * The queue and connection of a single host and port. Only used from the
+     * sending thread.
+     */
+    private static class Destination {
+        final String key;
+        final LinkedList<Send> queue = new LinkedList<Send>();
+        final ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        Send current;
+        SocketChannel channel;
+        SelectionKey selectionKey;
+        boolean connected;
+        long connectDeadline;
+        long idleSince;
+        
+        Destination(String key) {
+            this.key = key;
+        }
+    }
+    
+    private final ConcurrentLinkedQueue<Send> submitted = new ConcurrentLinkedQueue<Send>();
+    private final HashMap<String, Destination> destinations = new HashMap<String, Destination>();
+    private final ByteBuffer discard = ByteBuffer.allocate(1024);
+    private Selector selector;
+    private volatile boolean closeIdleRequested;
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int writeTimeout = DEFAULT_WRITE_TIMEOUT;
+    private volatile int keepAlive = DEFAULT_KEEP_ALIVE;
+    private long connects = 0;
+    private long reuses = 0;
+    private long retries = 0;
+    private long failures = 0;
+    private long jobs = 0;
+    private long queries = 0;
+    private long bytesSent = 0;
+    private int open = 0;
+    private int queued = 0;
+    
+    /**
+     * Get the pool used by <code>RawPrinter.printToHost</code>
+     * 
+     * @return The shared HostConnectionPool
+     */
+    public static HostConnectionPool getDefault() {
+        return defaultPool;
+    }
+    
+    /**
+     * Send a job to a host and wait until it has been written.
+     * 
+     * @param host The target host
+     * @param port The port on the target host
+     * @param data The job data
+     * @return The number of bytes sent
+     * @throws IOException if the job could not be sent
+     */
+    public long send(String host, int port, InputStream data) throws IOException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final long[] sent = new long[1];
+        final IOException[] error = new IOException[1];
+        
+        sendAsync(host, port, data, new SendListener() {
+            public void sent(long bytes) {
+                sent[0] = bytes;
+                done.countDown();
+            }
+            
+            public void failed(IOException ex) {
+                error[0] = ex;
+                done.countDown();
+            }
+        });
+        
+        try {
+            done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending to " + host + ":" + port);
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return sent[0];
+    }
+    
+    /**
+     * Queue a job for a host and return immediately. The data is read from
+     * the sending thread as the connection accepts it, so it should be held
+     * in memory. 
+     * 
+     * @param host The target host
+     * @param port The port on the target host
+     * @param data The job data
+     * @param listener Told when the job has been sent or has failed
+     */
+    public void sendAsync(String host, int port, InputStream data, SendListener listener) {
+        submit(host, port, data, listener, null, 0);
+    }
+    
+    /**
+     * Send a request to a host and wait for its reply, such as a status 
+     * query. The request is queued behind any jobs for the host and uses the
+     * same connection.
+     * 
+     * @param host The target host
+     * @param port The port on the target host
+     * @param request The request bytes
+     * @param check Decides when the reply is complete
+     * @param timeout How long to wait for the reply once the request has been
+     * written, in milliseconds
+     * @return The reply
+     * @throws IOException if the request could not be sent or the reply did 
+     * not arrive in time
+     */
+    public byte[] query(String host, int port, byte[] request, ResponseCheck check, int timeout) throws IOException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final IOException[] error = new IOException[1];
+        
+        Send send = submit(host, port, new ByteArrayInputStream(request), new SendListener() {
+            public void sent(long bytes) {
+                done.countDown();
+            }
+            
+            public void failed(IOException ex) {
+                error[0] = ex;
+                done.countDown();
+            }
+        }, check, timeout);
+        
+        try {
+            done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while querying " + host + ":" + port);
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return send.response.getByteArray();
+    }
+    
+    /**
+     * Hand a job or query to the sending thread
+     * 
+     * @return The queued Send, or null if it failed right away
+     */
+    private Send submit(String host, int port, InputStream data, SendListener listener, 
+            ResponseCheck check, int responseTimeout) {
+        // Resolve here so a slow lookup doesn't hold up the other printers
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            synchronized (this) {
+                failures++;
+            }
+            listener.failed(new UnknownHostException(host));
+            return null;
+        }
+        
+        Selector sel;
+        try {
+            sel = getSelector();
+        } catch (IOException ex) {
+            listener.failed(ex);
+            return null;
+        }
+        synchronized (this) {
+            queued++;
+        }
+        Send send = new Send(host + ":" + port, address, data, listener, check, responseTimeout);
+        submitted.add(send);
+        sel.wakeup();
+        return send;
+    }
+    
+    /**
+     * Get the selector, starting the sending thread on first use
+     */
+    private synchronized Selector getSelector() throws IOException {
+        if (selector == null) {
+            selector = Selector.open();
+            Thread thread = new Thread(this, "qz-host-sender");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return selector;
+    }
+    
+    /**
+     * The sending thread. Takes new jobs, enforces timeouts and services the 
+     * connections that are ready.
+     */
+    public void run() {
+        while (true) {
+            try {
+                Send send;
+                while ((send = submitted.poll()) != null) {
+                    enqueue(send);
+                }
+                
+                long wait = checkTimeouts(System.currentTimeMillis());
+                selector.select(wait);
+                
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    service(key);
+                }
+            } catch (IOException ex) {
+                LogIt.log(Level.SEVERE, "Host sender error.", ex);
+            } catch (RuntimeException ex) {
+                LogIt.log(Level.SEVERE, "Host sender error.", ex);
+            }
+        }
+    }
+    
+    private void enqueue(Send send) {
+        Destination d = destinations.get(send.key);
+        if (d == null) {
+            d = new Destination(send.key);
+            destinations.put(send.key, d);
+        }
+        d.queue.add(send);
+        if (d.current == null) {
+            startNext(d);
+        }
+    }
+    
+    /**
+     * Start writing the next queued job, or leave the connection idle
+     */
+    private void startNext(Destination d) {
+        d.current = d.queue.poll();
+        d.buffer.clear();
+        d.buffer.limit(0);
+        
+        if (d.current == null) {
+            d.idleSince = System.currentTimeMillis();
+            if (d.channel != null && keepAlive == 0) {
+                close(d);
+            } else if (d.channel != null) {
+                d.selectionKey.interestOps(SelectionKey.OP_READ);
+            }
+            return;
+        }
+        
+        if (d.channel == null) {
+            connect(d);
+        } else {
+            touch(d.current);
+            d.current.reused = true;
+            synchronized (this) {
+                reuses++;
+            }
+            if (d.connected) {
+                d.selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+    
+    /**
+     * Open a new connection for the current job
+     */
+    private void connect(Destination d) {
+        try {
+            d.channel = SocketChannel.open();
+            synchronized (this) {
+                connects++;
+                open++;
+            }
+            d.channel.configureBlocking(false);
+            d.channel.socket().setTcpNoDelay(true);
+            d.channel.socket().setKeepAlive(true);
+            d.channel.socket().setSendBufferSize(SEND_BUFFER_SIZE);
+            d.connected = d.channel.connect(d.current.address);
+            // The write timeout starts once connected, connecting has its own
+            d.current.deadline = 0;
+            if (d.connected) {
+                touch(d.current);
+            }
+            d.selectionKey = d.channel.register(selector, 
+                    d.connected ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, d);
+            int timeout = connectTimeout;
+            d.connectDeadline = !d.connected && timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+            LogIt.log("Opening connection to " + d.key);
+        } catch (IOException ex) {
+            fail(d, ex);
+        }
+    }
+    
+    /**
+     * Act on a connection that is ready
+     */
+    private void service(SelectionKey key) {
+        Destination d = (Destination)key.attachment();
+        try {
+            if (key.isConnectable() && d.channel.finishConnect()) {
+                d.connected = true;
+                d.connectDeadline = 0;
+                if (d.current != null) {
+                    touch(d.current);
+                }
+                key.interestOps(SelectionKey.OP_READ | (d.current != null ? SelectionKey.OP_WRITE : 0));
+            }
+            if (key.isValid() && key.isReadable()) {
+                // Printers don't answer raw jobs, anything sent outside of a
+                // query's reply is dropped
+                discard.clear();
+                int len = d.channel.read(discard);
+                Send send = d.current;
+                if (len > 0 && send != null && send.response != null) {
+                    send.response.append(discard.array(), 0, len);
+                    if (send.check.isComplete(send.response)) {
+                        complete(d);
+                        return;
+                    }
+                }
+                if (len == -1) {
+                    if (d.current == null) {
+                        LogIt.log("Connection to " + d.key + " was closed by the printer");
+                        close(d);
+                        return;
+                    }
+                    throw new EOFException("Connection to " + d.key + " was closed by the printer");
+                }
+            }
+            if (key.isValid() && key.isWritable() && d.current != null) {
+                write(d);
+            }
+        } catch (IOException ex) {
+            fail(d, ex);
+        }
+    }
+    
+    /**
+     * Write as much of the current job as the connection accepts
+     */
+    private void write(Destination d) throws IOException {
+        Send send = d.current;
+        ByteBuffer buffer = d.buffer;
+        
+        for (int blocks = 0; blocks < BLOCKS_PER_TURN; ) {
+            if (!buffer.hasRemaining()) {
+                if (send.firstBlock != null) {
+                    // The first block made it out, it no longer needs keeping
+                    send.firstBlock = null;
+                    send.replayable = false;
+                }
+                buffer.clear();
+                int len = readBlock(send.data, buffer.array());
+                if (len == -1 && send.check != null) {
+                    // Request written, wait for the reply
+                    send.response = new ByteArrayBuilder(64);
+                    send.deadline = System.currentTimeMillis() + send.responseTimeout;
+                    d.selectionKey.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                if (len == -1) {
+                    complete(d);
+                    return;
+                }
+                buffer.limit(len);
+                if (send.replayable) {
+                    send.firstBlock = new byte[len];
+                    System.arraycopy(buffer.array(), 0, send.firstBlock, 0, len);
+                }
+                blocks++;
+            }
+            
+            int written = d.channel.write(buffer);
+            send.sent += written;
+            if (written > 0) {
+                // Only a printer that stops taking data times out, a slow one
+                // can take as long as it needs
+                touch(send);
+            }
+            if (buffer.hasRemaining()) {
+                // Partial write, wait until the connection accepts more
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Restart the write timeout of a job that is making progress
+     */
+    private void touch(Send send) {
+        int timeout = writeTimeout;
+        send.deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+    }
+    
+    /**
+     * Fill as much of <code>block</code> as the stream has
+     * 
+     * @return The number of bytes read, or -1 if the stream is finished
+     */
+    private static int readBlock(InputStream data, byte[] block) throws IOException {
+        int total = 0;
+        int len;
+        while (total < block.length && (len = data.read(block, total, block.length - total)) != -1) {
+            total += len;
+        }
+        return total == 0 ? -1 : total;
+    }
+    
+    private void complete(Destination d) {
+        Send send = d.current;
+        synchronized (this) {
+            if (send.check != null) {
+                queries++;
+            } else {
+                jobs++;
+            }
+            queued--;
+            bytesSent += send.sent;
+        }
+        try {
+            send.listener.sent(send.sent);
+        } catch (RuntimeException ex) {
+            LogIt.log(Level.SEVERE, "Send listener error.", ex);
+        }
+        startNext(d);
+    }
+    
+    /**
+     * Drop the connection after an error. The current job is retried once if
+     * it failed on a reused connection before its first block was written,
+     * otherwise it fails and the next job gets a new connection.
+     */
+    private void fail(Destination d, IOException ex) {
+        close(d);
+        Send send = d.current;
+        if (send == null) {
+            return;
+        }
+        
+        if (send.reused && send.replayable && !send.retried) {
+            LogIt.log(Level.WARNING, "Reused connection to " + d.key + " failed, reconnecting.", ex);
+            send.retried = true;
+            send.reused = false;
+            send.sent = 0;
+            d.buffer.clear();
+            if (send.firstBlock != null) {
+                d.buffer.put(send.firstBlock);
+            }
+            d.buffer.flip();
+            synchronized (this) {
+                retries++;
+            }
+            connect(d);
+            return;
+        }
+        
+        synchronized (this) {
+            failures++;
+            queued--;
+            bytesSent += send.sent;
+        }
+        try {
+            send.listener.failed(ex);
+        } catch (RuntimeException e) {
+            LogIt.log(Level.SEVERE, "Send listener error.", e);
+        }
+        startNext(d);
+    }
+    
+    private void close(Destination d) {
+        if (d.channel == null) {
+            return;
+        }
+        if (d.selectionKey != null) {
+            d.selectionKey.cancel();
+        }
+        try {
+            d.channel.close();
+        } catch (IOException ex) {
+            LogIt.log(Level.WARNING, "Could not close connection to " + d.key, ex);
+        }
+        synchronized (this) {
+            open--;
+        }
+        d.channel = null;
+        d.selectionKey = null;
+        d.connected = false;
+        d.connectDeadline = 0;
+    }
+    
+    /**
+     * Fail connections and jobs that have run out of time and close expired
+     * idle connections
+     * 
+     * @return The time until the next deadline in milliseconds, or 0 if there
+     * is none
+     */
+    private long checkTimeouts(long now) {
+        boolean closeAll = closeIdleRequested;
+        closeIdleRequested = false;
+        long next = Long.MAX_VALUE;
+        int idleTime = keepAlive;
+        
+        Iterator<Destination> iterator = destinations.values().iterator();
+        while (iterator.hasNext()) {
+            Destination d = iterator.next();
+            
+            if (d.connectDeadline > 0 && now >= d.connectDeadline) {
+                d.current.replayable = false;
+                fail(d, new SocketTimeoutException("Connecting to " + d.key + " timed out after " + connectTimeout + " ms"));
+            } else if (d.current != null && d.current.response != null && now >= d.current.deadline) {
+                d.current.replayable = false;
+                fail(d, new SocketTimeoutException("No reply from " + d.key + " within " + d.current.responseTimeout + " ms"));
+            } else if (d.current != null && d.current.deadline > 0 && now >= d.current.deadline) {
+                d.current.replayable = false;
+                fail(d, new SocketTimeoutException("Nothing could be written to " + d.key + " for " + writeTimeout + " ms"));
+            }
+            
+            if (d.current == null && d.channel != null 
+                    && (closeAll || idleTime == 0 || now - d.idleSince >= idleTime)) {
+                LogIt.log("Closing idle connection to " + d.key);
+                close(d);
+            }
+            
+            if (d.current == null && d.channel == null) {
+                iterator.remove();
+                continue;
+            }
+            
+            if (d.connectDeadline > 0) {
+                next = Math.min(next, d.connectDeadline);
+            }
+            if (d.current != null && d.current.deadline > 0) {
+                next = Math.min(next, d.current.deadline);
+            }
+            if (d.current == null) {
+                next = Math.min(next, d.idleSince + idleTime);
+            }
+        }
+        return next == Long.MAX_VALUE ? 0 : Math.max(1, next - now);
+    }
+    
+    /**
+     * Close all idle connections
+     */
+    public void closeAll() {
+        closeIdleRequested = true;
+        wakeup();
+    }
+    
+    private void wakeup() {
+        Selector sel;
+        synchronized (this) {
+            sel = selector;
+        }
+        if (sel != null) {
+            sel.wakeup();
+        }
+    }
+    
+    /**
+     * Set how long to wait for a connection to be accepted
+     * 
+     * @param connectTimeout The timeout in milliseconds, 0 to wait
+     * indefinitely
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = Math.max(0, connectTimeout);
+    }
+    
+    /**
+     * Set how long a job may go without any of it being written before its
+     * connection is closed. A printer that keeps accepting data, however
+     * slowly, never times out.
+     * 
+     * @param writeTimeout The timeout in milliseconds, 0 to wait
+     * indefinitely
+     */
+    public void setWriteTimeout(int writeTimeout) {
+        this.writeTimeout = Math.max(0, writeTimeout);
+    }
+    
+    /**
+     * Set how long an idle connection is kept open for the next job
+     * 
+     * @param keepAlive The time in milliseconds, 0 to close connections after
+     * every job
+     */
+    public void setKeepAlive(int keepAlive) {
+        this.keepAlive = Math.max(0, keepAlive);
+        wakeup();
+    }
+    
+    /**
+     * Returns the pool counters as a JSONObject
+     * 
+     * @return A JSONObject with the jobs sent, queries answered, connections
+     * opened and reused, retries, failures, bytes sent, open connections and
+     * queued jobs
+     */
+    public synchronized JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("jobs", jobs);
+        stats.put("queries", queries);
+        stats.put("connects", connects);
+        stats.put("reuses", reuses);
+        stats.put("retries", retries);
+        stats.put("failures", failures);
+        stats.put("bytesSent", bytesSent);
+        stats.put("open", open);
+        stats.put("queued", queued);
+        return stats;
+    }
+}
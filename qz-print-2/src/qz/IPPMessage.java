@@ -0,0 +1,254 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.logging.Level;
+
+/**
+ * Encodes IPP requests and decodes IPP responses (RFC 8010). Only the value
+ * types used to submit and track raw jobs are supported, other values are 
+ * kept as strings.
+ */
+public class IPPMessage {
+    
+    public static final int PRINT_JOB = 0x0002;
+    public static final int CANCEL_JOB = 0x0008;
+    public static final int GET_JOB_ATTRIBUTES = 0x0009;
+    public static final int GET_PRINTER_ATTRIBUTES = 0x000B;
+    
+    public static final int OPERATION_ATTRIBUTES = 0x01;
+    public static final int JOB_ATTRIBUTES = 0x02;
+    public static final int END_OF_ATTRIBUTES = 0x03;
+    public static final int PRINTER_ATTRIBUTES = 0x04;
+    public static final int UNSUPPORTED_ATTRIBUTES = 0x05;
+    
+    public static final int INTEGER = 0x21;
+    public static final int BOOLEAN = 0x22;
+    public static final int ENUM = 0x23;
+    public static final int TEXT = 0x41;
+    public static final int NAME = 0x42;
+    public static final int KEYWORD = 0x44;
+    public static final int URI = 0x45;
+    public static final int CHARSET = 0x47;
+    public static final int NATURAL_LANGUAGE = 0x48;
+    public static final int MIME_MEDIA_TYPE = 0x49;
+    
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    private final int code;
+    private final int requestId;
+    private final HashMap<String, Object> attributes = new HashMap<String, Object>();
+    
+    /**
+     * Start a request. The operation attributes group is opened with the
+     * required charset and language attributes.
+     * 
+     * @param operation The operation id, such as <code>PRINT_JOB</code>
+     * @param requestId The request id echoed by the response
+     */
+    public IPPMessage(int operation, int requestId) {
+        this.code = operation;
+        this.requestId = requestId;
+        try {
+            out.writeShort(0x0101);
+            out.writeShort(operation);
+            out.writeInt(requestId);
+            out.writeByte(OPERATION_ATTRIBUTES);
+        } catch (IOException ignore) {
+            // Not thrown by ByteArrayOutputStream
+        }
+        addString(CHARSET, "attributes-charset", "utf-8");
+        addString(NATURAL_LANGUAGE, "attributes-natural-language", "en");
+    }
+    
+    private IPPMessage(int code, int requestId, HashMap<String, Object> attributes) {
+        this.code = code;
+        this.requestId = requestId;
+        this.attributes.putAll(attributes);
+    }
+    
+    /**
+     * Start a new attribute group
+     * 
+     * @param tag The group tag, such as <code>JOB_ATTRIBUTES</code>
+     */
+    public void addGroup(int tag) {
+        try {
+            out.writeByte(tag);
+        } catch (IOException ignore) {
+        }
+    }
+    
+    /**
+     * Add a string valued attribute, encoded as UTF-8
+     * 
+     * @param valueTag The value type, such as <code>KEYWORD</code>
+     * @param name The attribute name
+     * @param values The attribute's values, at least one
+     */
+    public void addString(int valueTag, String name, String... values) {
+        try {
+            for (int i = 0; i < values.length; i++) {
+                // Additional values of an attribute have an empty name
+                writeAttribute(valueTag, i == 0 ? name : "", values[i].getBytes("UTF-8"));
+            }
+        } catch (UnsupportedEncodingException ex) {
+            LogIt.log(Level.SEVERE, "Unsupported encoding.", ex);
+        }
+    }
+    
+    /**
+     * Add an integer or enum attribute
+     * 
+     * @param valueTag <code>INTEGER</code> or <code>ENUM</code>
+     * @param name The attribute name
+     * @param value The attribute value
+     */
+    public void addInteger(int valueTag, String name, int value) {
+        writeAttribute(valueTag, name, new byte[] {
+            (byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8), (byte)value
+        });
+    }
+    
+    private void writeAttribute(int valueTag, String name, byte[] value) {
+        try {
+            byte[] nameBytes = name.getBytes("US-ASCII");
+            out.writeByte(valueTag);
+            out.writeShort(nameBytes.length);
+            out.write(nameBytes);
+            out.writeShort(value.length);
+            out.write(value);
+        } catch (IOException ignore) {
+            // Not thrown by ByteArrayOutputStream
+        }
+    }
+    
+    /**
+     * Close the attributes and return the encoded request. Any document data
+     * follows these bytes.
+     * 
+     * @return The encoded request
+     */
+    public byte[] getBytes() {
+        byte[] bytes = buffer.toByteArray();
+        byte[] message = new byte[bytes.length + 1];
+        System.arraycopy(bytes, 0, message, 0, bytes.length);
+        message[bytes.length] = END_OF_ATTRIBUTES;
+        return message;
+    }
+    
+    /**
+     * Decode an IPP message. Only the first value of each attribute is kept.
+     * Integers, enums and booleans become Integers, everything else a String.
+     * 
+     * @param message The encoded message
+     * @return The decoded message
+     * @throws IOException if the message is truncated
+     */
+    public static IPPMessage parse(byte[] message) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+        HashMap<String, Object> attributes = new HashMap<String, Object>();
+        try {
+            in.readUnsignedShort();
+            int code = in.readUnsignedShort();
+            int requestId = in.readInt();
+            
+            int tag;
+            while ((tag = in.readUnsignedByte()) != END_OF_ATTRIBUTES) {
+                if (tag < 0x10) {
+                    // Start of the next group
+                    continue;
+                }
+                byte[] name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                byte[] value = new byte[in.readUnsignedShort()];
+                in.readFully(value);
+                
+                if (name.length == 0) {
+                    // Additional value of a multi-valued attribute
+                    continue;
+                }
+                String attributeName = new String(name, "US-ASCII");
+                if ((tag == INTEGER || tag == ENUM) && value.length == 4) {
+                    attributes.put(attributeName, ((value[0] & 0xFF) << 24) | ((value[1] & 0xFF) << 16) 
+                            | ((value[2] & 0xFF) << 8) | (value[3] & 0xFF));
+                } else if (tag == BOOLEAN && value.length == 1) {
+                    attributes.put(attributeName, (int)value[0]);
+                } else {
+                    attributes.put(attributeName, new String(value, "UTF-8"));
+                }
+            }
+            return new IPPMessage(code, requestId, attributes);
+        } catch (EOFException ex) {
+            throw new IOException("Truncated IPP message");
+        }
+    }
+    
+    /**
+     * @return The operation id of a request or the status code of a response
+     */
+    public int getCode() {
+        return code;
+    }
+    
+    public int getRequestId() {
+        return requestId;
+    }
+    
+    /**
+     * @return true if this is a response with a successful status code
+     */
+    public boolean isSuccessful() {
+        return code < 0x0100;
+    }
+    
+    /**
+     * Get an integer or enum attribute of a parsed message
+     * 
+     * @param name The attribute name
+     * @param defaultValue Returned if the attribute is missing
+     * @return The attribute value
+     */
+    public int getInteger(String name, int defaultValue) {
+        Object value = attributes.get(name);
+        return value instanceof Integer ? (Integer)value : defaultValue;
+    }
+    
+    /**
+     * Get a string attribute of a parsed message
+     * 
+     * @param name The attribute name
+     * @return The attribute value, or null if it is missing
+     */
+    public String getString(String name) {
+        Object value = attributes.get(name);
+        return value instanceof String ? (String)value : null;
+    }
+}
@@ -0,0 +1,318 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import javax.print.PrintException;
+import javax.print.PrintService;
+
+/**
+ * IPPPrinter sends raw jobs straight to a CUPS queue with an IPP Print-Job
+ * request, bypassing <code>javax.print</code> and <code>lp</code>. The job
+ * data is streamed in the request body with chunked transfer encoding. 
+ * 
+ * Requests go through <code>HttpURLConnection</code>, which keeps the 
+ * connection to the scheduler open for the next request. The job id given by
+ * CUPS is kept so the job can be tracked with <code>getJobState</code>.
+ */
+public class IPPPrinter implements Printer {
+    
+    /**
+     * Default address of the CUPS scheduler
+     */
+    public static final String DEFAULT_SERVER = "http://localhost:631";
+    
+    private static final String DOCUMENT_FORMAT = "application/vnd.cups-raw";
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 60000;
+    private static final int QUERY_TIMEOUT = 5000;
+    private static final String[] JOB_STATES = {
+        "pending", "pending-held", "processing", "processing-stopped", "canceled", "aborted", "completed"
+    };
+    
+    private static final int PRINTER_STOPPED = 5;
+    
+    private static final AtomicInteger requestIds = new AtomicInteger();
+    
+    private String name;
+    private PrintService ps;
+    private String jobTitle;
+    private String server = DEFAULT_SERVER;
+    private volatile int lastJobId;
+    
+    public String getName() {
+        return name;
+    }
+
+    public void printRaw(ByteArrayBuilder data) throws PrintException {
+        submit(data.getInputStream());
+    }
+
+    public void printRaw(InputStream data) throws PrintException {
+        submit(data);
+    }
+
+    public void printAlternate(ByteArrayBuilder data) throws PrintException {
+        printAlternate(data.getInputStream());
+    }
+
+    public void printAlternate(InputStream data) throws PrintException {
+        LogIt.log(Level.WARNING, "Alternate printing is not used by IPP printers, sending job over IPP.");
+        submit(data);
+    }
+    
+    /**
+     * Submits a raw job to the printer's CUPS queue
+     * 
+     * @param data The raw data to send
+     * @return The job id assigned by CUPS
+     * @throws PrintException if the job could not be sent or was rejected
+     */
+    public int submit(InputStream data) throws PrintException {
+        IPPMessage request = createRequest(IPPMessage.PRINT_JOB);
+        request.addString(IPPMessage.NAME, "requesting-user-name", System.getProperty("user.name"));
+        request.addString(IPPMessage.NAME, "job-name", jobTitle == null ? "qz-print" : jobTitle);
+        request.addString(IPPMessage.MIME_MEDIA_TYPE, "document-format", DOCUMENT_FORMAT);
+        
+        LogIt.log("Sending print job to CUPS queue: \"" + name + "\"");
+        IPPMessage response;
+        try {
+            response = exchange(request, data);
+        } catch (IOException ex) {
+            LogIt.log(Level.SEVERE, "IPP print error.", ex);
+            throw new PrintException(ex);
+        }
+        if (!response.isSuccessful()) {
+            throw new PrintException("CUPS rejected the job for \"" + name + "\": " + getStatusMessage(response));
+        }
+        
+        lastJobId = response.getInteger("job-id", 0);
+        LogIt.log("Print job " + lastJobId + " queued by CUPS for \"" + name + "\"");
+        return lastJobId;
+    }
+    
+    /**
+     * Queries the state of a job with a Get-Job-Attributes request for just
+     * its <code>job-state</code>
+     * 
+     * @param jobId The job id assigned by CUPS
+     * @return The IPP job state keyword, such as "processing" or "completed"
+     * @throws IOException if the scheduler could not be reached or doesn't 
+     * know the job
+     */
+    public String getJobState(int jobId) throws IOException {
+        IPPMessage request = createRequest(IPPMessage.GET_JOB_ATTRIBUTES);
+        request.addInteger(IPPMessage.INTEGER, "job-id", jobId);
+        request.addString(IPPMessage.KEYWORD, "requested-attributes", "job-state");
+        
+        IPPMessage response = exchange(request, null);
+        if (!response.isSuccessful()) {
+            throw new IOException("Could not get state of job " + jobId + ": " + getStatusMessage(response));
+        }
+        int state = response.getInteger("job-state", 0);
+        return state >= 3 && state < 3 + JOB_STATES.length ? JOB_STATES[state - 3] : "unknown";
+    }
+    
+    /**
+     * Queries the queue's state with a Get-Printer-Attributes request
+     * 
+     * @return The queue's status
+     * @throws IOException if the scheduler could not be reached or doesn't 
+     * know the queue
+     */
+    public PrinterStatus queryStatus() throws IOException {
+        IPPMessage request = createRequest(IPPMessage.GET_PRINTER_ATTRIBUTES);
+        request.addString(IPPMessage.KEYWORD, "requested-attributes", 
+                "printer-state", "printer-is-accepting-jobs", "printer-state-message");
+        
+        IPPMessage response = exchange(request, null);
+        if (!response.isSuccessful()) {
+            throw new IOException("Could not get state of \"" + name + "\": " + getStatusMessage(response));
+        }
+        String message = response.getString("printer-state-message");
+        if (response.getInteger("printer-state", 0) == PRINTER_STOPPED) {
+            return new PrinterStatus(PrinterStatus.State.PAUSED, message == null ? "Stopped" : message);
+        }
+        if (response.getInteger("printer-is-accepting-jobs", 1) == 0) {
+            return new PrinterStatus(PrinterStatus.State.PAUSED, message == null ? "Not accepting jobs" : message);
+        }
+        return new PrinterStatus(PrinterStatus.State.READY, message);
+    }
+    
+    /**
+     * Get the queue's cached status from the <code>StatusMonitor</code>
+     * 
+     * @return The last known status
+     */
+    public PrinterStatus getStatus() {
+        return StatusMonitor.getDefault().getStatus("IPP:" + server + getResource(), new Callable<PrinterStatus>() {
+            public PrinterStatus call() throws IOException {
+                return queryStatus();
+            }
+        });
+    }
+    
+    /**
+     * Get a job's state as last queried in the background by the 
+     * <code>StatusMonitor</code>, so the caller never waits on CUPS
+     * 
+     * @param jobId The job id assigned by CUPS
+     * @return The IPP job state keyword, or an empty String until it is known
+     */
+    public String getCachedJobState(final int jobId) {
+        return StatusMonitor.getDefault().getCached("IPP:" + server + getResource() + ":" + jobId, 
+                new Callable<String>() {
+            public String call() throws IOException {
+                return getJobState(jobId);
+            }
+        }, "");
+    }
+    
+    /**
+     * @return The id CUPS assigned to the last job sent to this printer, or 0
+     */
+    public int getLastJobId() {
+        return lastJobId;
+    }
+    
+    private IPPMessage createRequest(int operation) {
+        IPPMessage request = new IPPMessage(operation, requestIds.incrementAndGet());
+        request.addString(IPPMessage.URI, "printer-uri", getPrinterUri());
+        return request;
+    }
+    
+    /**
+     * Posts a request to the printer's resource, followed by the document 
+     * data if there is any
+     */
+    private IPPMessage exchange(IPPMessage request, InputStream document) throws IOException {
+        byte[] header = request.getBytes();
+        HttpURLConnection con = (HttpURLConnection)new URL(server + getResource()).openConnection();
+        con.setConnectTimeout(CONNECT_TIMEOUT);
+        con.setReadTimeout(document != null ? READ_TIMEOUT : QUERY_TIMEOUT);
+        con.setDoOutput(true);
+        con.setRequestMethod("POST");
+        con.setRequestProperty("Content-Type", "application/ipp");
+        if (document != null) {
+            con.setChunkedStreamingMode(FileUtilities.STREAM_BUFFER_SIZE);
+        } else {
+            con.setFixedLengthStreamingMode(header.length);
+        }
+        
+        OutputStream out = con.getOutputStream();
+        try {
+            out.write(header);
+            if (document != null) {
+                FileUtilities.copyStream(document, out);
+            }
+        } finally {
+            out.close();
+        }
+        
+        int status = con.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            InputStream error = con.getErrorStream();
+            if (error != null) {
+                error.close();
+            }
+            throw new IOException("CUPS returned HTTP " + status + " " + con.getResponseMessage());
+        }
+        
+        // Reading the whole response lets the connection be reused
+        ByteArrayBuilder response = new ByteArrayBuilder(256);
+        byte[] buffer = new byte[1024];
+        InputStream in = con.getInputStream();
+        try {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                response.append(buffer, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return IPPMessage.parse(response.getByteArray());
+    }
+    
+    private static String getStatusMessage(IPPMessage response) {
+        String message = response.getString("status-message");
+        return "status 0x" + Integer.toHexString(response.getCode()) + (message == null ? "" : " " + message);
+    }
+    
+    private String getResource() {
+        try {
+            return "/printers/" + URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException ex) {
+            return "/printers/" + name;
+        }
+    }
+    
+    private String getPrinterUri() {
+        String scheme = server.startsWith("https:") ? "ipps" : "ipp";
+        return scheme + server.substring(server.indexOf(':')) + getResource();
+    }
+    
+    /**
+     * Set the address of the CUPS scheduler
+     * 
+     * @param server The scheduler's URL, such as http://localhost:631
+     */
+    public void setServer(String server) {
+        this.server = server.endsWith("/") ? server.substring(0, server.length() - 1) : server;
+    }
+    
+    public String getServer() {
+        return server;
+    }
+        
+    public boolean ready() {
+        return getStatus().isReady();
+    }
+
+    public void setPrintService(PrintService ps) {
+        this.ps = ps;
+    }
+
+    public PrintService getPrintService() {
+        return ps;
+    }
+
+    public String getType() {
+        return "IPP";
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public void setJobTitle(String jobTitle) {
+        this.jobTitle = jobTitle;
+    }
+}
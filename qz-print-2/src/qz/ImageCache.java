@@ -0,0 +1,387 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * A least recently used cache of converted raw image commands. Entries are
+ * keyed on a digest of the image source together with every setting that
+ * changes the generated command, so a logo printed on every label is only
+ * decoded and converted once. The cache is bounded by the total size of the
+ * cached commands, and can optionally be backed by a local directory so a
+ * restarted applet starts warm. The directory has its own size bound, the
+ * least recently used commands are deleted from it first.
+ */
+public class ImageCache {
+    
+    /**
+     * Default bound on the total size of the cached commands, in bytes
+     */
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+    /**
+     * Default bound on the commands persisted to the cache directory, in bytes
+     */
+    public static final long DEFAULT_MAX_DISK_BYTES = 64 * 1024 * 1024;
+    
+    private static final String FILE_SUFFIX = ".qzimg";
+    
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long maxBytes;
+    private long maxDiskBytes = DEFAULT_MAX_DISK_BYTES;
+    private long size = 0;
+    private long diskSize = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long diskHits = 0;
+    private File directory;
+    
+    public ImageCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+    
+    public ImageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+    
+    /**
+     * Builds the cache key for an image. The key is a SHA-1 digest of the
+     * image source followed by the conversion settings.
+     * 
+     * @param source The image source, either its data or a data URI
+     * @param settings Every setting that affects the converted command
+     * @return The cache key as a hex string
+     */
+    public static String createKey(byte[] source, Object... settings) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(source);
+            for (Object setting : settings) {
+                digest.update((byte)0);
+                digest.update(String.valueOf(setting).getBytes("UTF-8"));
+            }
+            return ByteUtilities.bytesToHex(digest.digest());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-1 is not available", ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 is not available", ex);
+        }
+    }
+    
+    /**
+     * Look up a converted image command. The cache directory is checked when
+     * the command isn't held in memory.
+     * 
+     * @param key The key from <code>createKey</code>
+     * @return The cached command, or null if the image hasn't been converted
+     */
+    public byte[] get(String key) {
+        File file;
+        synchronized(this) {
+            byte[] command = entries.get(key);
+            if (command != null) {
+                hits++;
+                // Keep the persisted copy of a command in use from being
+                // trimmed first
+                disk.get(key);
+                return command;
+            }
+            file = directory == null || disk.get(key) == null ? null : new File(directory, key + FILE_SUFFIX);
+        }
+        
+        byte[] command = file != null ? readFile(file) : null;
+        
+        synchronized(this) {
+            if (command != null) {
+                hits++;
+                diskHits++;
+                store(key, command);
+            } else {
+                misses++;
+                if (file != null) {
+                    removeDisk(key);
+                }
+            }
+        }
+        return command;
+    }
+    
+    /**
+     * Add a converted image command to the cache, evicting the least recently
+     * used commands if the cache grows over its size bound.
+     * 
+     * @param key The key from <code>createKey</code>
+     * @param command The converted command. It must not be modified afterwards.
+     */
+    public void put(String key, byte[] command) {
+        File dir;
+        synchronized(this) {
+            store(key, command);
+            dir = directory;
+        }
+        if (dir == null || !writeFile(new File(dir, key + FILE_SUFFIX), command)) {
+            return;
+        }
+        synchronized(this) {
+            if (dir.equals(directory)) {
+                Long old = disk.put(key, Long.valueOf(command.length));
+                if (old != null) {
+                    diskSize -= old.longValue();
+                }
+                diskSize += command.length;
+                trimDisk();
+            }
+        }
+    }
+    
+    private void store(String key, byte[] command) {
+        if (command.length > maxBytes) {
+            return;
+        }
+        byte[] old = entries.put(key, command);
+        if (old != null) {
+            size -= old.length;
+        }
+        size += command.length;
+        trim();
+    }
+    
+    private void trim() {
+        Iterator<Map.Entry<String, byte[]>> it = entries.entrySet().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            size -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+    
+    private void trimDisk() {
+        Iterator<Map.Entry<String, Long>> it = disk.entrySet().iterator();
+        while (diskSize > maxDiskBytes && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            diskSize -= entry.getValue().longValue();
+            it.remove();
+            new File(directory, entry.getKey() + FILE_SUFFIX).delete();
+        }
+    }
+    
+    private void removeDisk(String key) {
+        Long length = disk.remove(key);
+        if (length != null) {
+            diskSize -= length.longValue();
+        }
+    }
+    
+    private byte[] readFile(File file) {
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                byte[] command = new byte[(int)file.length()];
+                int read = 0;
+                while (read < command.length) {
+                    int n = in.read(command, read, command.length - read);
+                    if (n < 0) {
+                        return null;
+                    }
+                    read += n;
+                }
+                return command;
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            LogIt.log(Level.WARNING, "Could not read cached image " + file, ex);
+            return null;
+        }
+    }
+    
+    private boolean writeFile(File file, byte[] command) {
+        // Write to a temporary file first so a partly written entry is never
+        // picked up by get()
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(command);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    LogIt.log(Level.WARNING, "Could not store cached image " + file);
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException ex) {
+            LogIt.log(Level.WARNING, "Could not store cached image " + file, ex);
+            return false;
+        } finally {
+            tmp.delete();
+        }
+    }
+    
+    /**
+     * Set the bound on the total size of the commands held in memory
+     * 
+     * @param maxBytes The new bound in bytes. 0 disables the memory cache.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+    
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+    
+    /**
+     * Set the bound on the commands persisted to the cache directory
+     * 
+     * @param maxDiskBytes The new bound in bytes
+     */
+    public synchronized void setMaxDiskBytes(long maxDiskBytes) {
+        this.maxDiskBytes = maxDiskBytes;
+        trimDisk();
+    }
+    
+    public synchronized long getMaxDiskBytes() {
+        return maxDiskBytes;
+    }
+    
+    /**
+     * Set the directory converted commands are persisted to. The directory is
+     * created if needed, and commands already in it are picked up, least
+     * recently used first.
+     * 
+     * @param directory The cache directory, or null to only cache in memory
+     */
+    public synchronized void setDirectory(File directory) {
+        setDirectory(directory, maxDiskBytes);
+    }
+    
+    /**
+     * Set the directory converted commands are persisted to along with its
+     * size bound. The bound only applies once the previous directory has been
+     * let go, so it is never trimmed to the new directory's bound.
+     * 
+     * @param directory The cache directory, or null to only cache in memory
+     * @param maxDiskBytes The total size of the commands kept in the directory
+     */
+    public synchronized void setDirectory(File directory, long maxDiskBytes) {
+        disk.clear();
+        diskSize = 0;
+        this.directory = null;
+        this.maxDiskBytes = maxDiskBytes;
+        if (directory == null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LogIt.log(Level.WARNING, "Could not create image cache directory " + directory);
+            return;
+        }
+        this.directory = directory;
+        
+        ArrayList<File> commands = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            if (files[i].getName().endsWith(FILE_SUFFIX) && files[i].isFile()) {
+                commands.add(files[i]);
+            }
+        }
+        Collections.sort(commands, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        for (File command : commands) {
+            String name = command.getName();
+            disk.put(name.substring(0, name.length() - FILE_SUFFIX.length()), Long.valueOf(command.length()));
+            diskSize += command.length();
+        }
+        trimDisk();
+    }
+    
+    public synchronized File getDirectory() {
+        return directory;
+    }
+    
+    /**
+     * Drop all commands held in memory and reset the counters. Persisted
+     * commands are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+        hits = 0;
+        misses = 0;
+        diskHits = 0;
+    }
+    
+    public synchronized long getHits() {
+        return hits;
+    }
+    
+    public synchronized long getMisses() {
+        return misses;
+    }
+    
+    /**
+     * @return The number of hits that were loaded from the cache directory
+     */
+    public synchronized long getDiskHits() {
+        return diskHits;
+    }
+    
+    /**
+     * @return The total size of the commands held in memory, in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+    
+    /**
+     * @return The total size of the commands in the cache directory, in bytes
+     */
+    public synchronized long getDiskSize() {
+        return diskSize;
+    }
+    
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+}
@@ -23,9 +23,20 @@
  */
 package qz;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import qz.exception.InvalidRawImageException;
@@ -67,10 +78,60 @@ public class ImageWrapper {
      * discarded.
      */
     public static final int CHECK_ALPHA = 2;
+    /**
+     * Represents the DITHER_FLOYD_STEINBERG quantization method, where the
+     * error of each thresholded pixel is diffused to its unprocessed
+     * neighbours with the Floyd-Steinberg weights. Transparent pixels are 
+     * blended against white.
+     */
+    public static final int DITHER_FLOYD_STEINBERG = 3;
+    /**
+     * Represents the DITHER_ATKINSON quantization method, an error diffusion
+     * that only spreads 3/4 of the error, giving lighter output with more
+     * contrast than Floyd-Steinberg.
+     */
+    public static final int DITHER_ATKINSON = 4;
+    /**
+     * Represents the DITHER_ORDERED quantization method, where each pixel is
+     * compared against an 8x8 Bayer threshold matrix. Pixels are independent
+     * of each other, so bands of the image are converted in parallel.
+     */
+    public static final int DITHER_ORDERED = 5;
+    
+    /*
+     * Images with at least this many pixels are split into row bands when the
+     * quantization method allows it
+     */
+    private static final int PARALLEL_PIXEL_THRESHOLD = 1 << 18;
+    /*
+     * Rows per ESC/POS raster or graphics command, kept under the 1662 dot
+     * limit of GS ( L and the 2303 dot limit of GS v 0
+     */
+    private static final int RASTER_BAND_HEIGHT = 1024;
+    private static final int[] BAYER_THRESHOLDS = new int[64];
+    private static ExecutorService bandExecutor;
+    
+    static {
+        int[] bayer = {
+             0, 32,  8, 40,  2, 34, 10, 42,
+            48, 16, 56, 24, 50, 18, 58, 26,
+            12, 44,  4, 36, 14, 46,  6, 38,
+            60, 28, 52, 20, 62, 30, 54, 22,
+             3, 35, 11, 43,  1, 33,  9, 41,
+            51, 19, 59, 27, 49, 17, 57, 25,
+            15, 47,  7, 39, 13, 45,  5, 37,
+            63, 31, 55, 23, 61, 29, 53, 21
+        };
+        // Luma below the threshold is black. Thresholds are spread evenly
+        // across the 0-255 range: 2, 6, 10 ... 254
+        for (int i = 0; i < 64; i++) {
+            BAYER_THRESHOLDS[i] = (2 * bayer[i] + 1) * 2;
+        }
+    }
     
     private int lumaThreshold = 127;
-    private boolean[] imageAsBooleanArray;        //Image representation as an array of boolean, with true values representing imageAsBooleanArray dots
-    private int[] imageAsIntArray;                //Image representation as an array of ints, with each bit representing a imageAsBooleanArray dot
+    private byte[] imageAsPackedRows;             //Image representation as rows of packed bits, each row padded to a whole byte
+    private int bytesPerRow;                      //Number of bytes in each packed row
     private final ByteArrayBuilder byteBuffer = new ByteArrayBuilder();
     private int alphaThreshold = 127;
     private BufferedImage bufferedImage;
@@ -80,6 +141,7 @@ public class ImageWrapper {
     private int xPos = 0;   // X coordinate used for EPL2, CPCL.  Irrelevant for ZPLII, ESC/P, etc
     private int yPos = 0;   // Y coordinate used for EPL2, CPCL.  Irrelevant for ZPLII, ESC/P, etc
     private int dotDensity = 32;  // Generally 32 = Single (normal) 33 = Double (higher res) for ESCP.  Irrelevant for all other languages.
+    private boolean zplCompression = false;  // Send the smallest of ^GF hex, ASCII compressed or Z64 data.  ZPL only.
 
     /**
      * Creates a new
@@ -90,16 +152,27 @@ public class ImageWrapper {
      * @param languageType The image's language type
      */
     public ImageWrapper(BufferedImage bufferedImage, LanguageType languageType) {
+        this(bufferedImage, languageType, CHECK_LUMA);
+    }
+    
+    /**
+     * Creates a new
+     * <code>ImageWrapper</code> from a
+     * <code>BufferedImage</code>, converting it to monochrome with the given
+     * quantization method.
+     *
+     * @param bufferedImage The image to convert for thermal printing
+     * @param languageType The image's language type
+     * @param imageQuantizationMethod The quantization method to use
+     */
+    public ImageWrapper(BufferedImage bufferedImage, LanguageType languageType, int imageQuantizationMethod) {
         this.bufferedImage = bufferedImage;
+        this.imageQuantizationMethod = imageQuantizationMethod;
         this.languageType = languageType;
         LogIt.log("Loading BufferedImage");
         LogIt.log(
                 "Dimensions: " + bufferedImage.getWidth() + "x" + bufferedImage.getHeight());
         init();
-        
-        if (languageType.requiresImageWidthValidated()) {
-            validateImageWidth();
-        }
     }
 
     /**
@@ -136,7 +209,10 @@ public class ImageWrapper {
      * <code>setLumaThreshold</code> <li><code>CHECK_ALPHA</code>: Pixels are
      * considered black if and only if their opacity (alpha) is over a
      * threshold,. This threshold is set with
-     * <code>setAlphaThreshold</code> </ul>
+     * <code>setAlphaThreshold</code> <li><code>DITHER_FLOYD_STEINBERG</code>,
+     * <code>DITHER_ATKINSON</code>, <code>DITHER_ORDERED</code>: The image
+     * is dithered, with pixels under <code>setLumaThreshold</code> (after
+     * error diffusion) considered black </ul>
      *
      * Default quantization method is
      * <code>CHECK_BLACK</code>.
@@ -157,16 +233,48 @@ public class ImageWrapper {
      * <code>setLumaThreshold</code> <li><code>CHECK_ALPHA</code>: Pixels are
      * considered black if and only if their opacity (alpha) is over a
      * threshold,. This threshold is set with
-     * <code>setAlphaThreshold</code> </ul>
+     * <code>setAlphaThreshold</code> <li><code>DITHER_FLOYD_STEINBERG</code>,
+     * <code>DITHER_ATKINSON</code>, <code>DITHER_ORDERED</code>: The image
+     * is dithered, with pixels under <code>setLumaThreshold</code> (after
+     * error diffusion) considered black </ul>
      *
      * Default (and fallback) quantization method is
      * <code>CHECK_BLACK</code>.
      *
+     * The method must be set before the image is initialized, either through
+     * the constructor or prior to calling <code>init()</code> again.
+     *
      * @param imageQuantizationMethod the quantization method to set
      */
     public void setImageQuantizationMethod(int imageQuantizationMethod) {
         this.imageQuantizationMethod = imageQuantizationMethod;
     }
+    
+    /**
+     * Translates a quantization method name to its constant. Accepted names
+     * are "black", "luma", "alpha", "floyd-steinberg" (or "dither"), 
+     * "atkinson" and "ordered" (or "bayer").
+     * 
+     * @param method The name of the quantization method
+     * @return The quantization method, or -1 if the name is unknown
+     */
+    public static int getQuantizationMethod(String method) {
+        String m = method == null ? "" : method.trim().toLowerCase();
+        if (m.equals("black")) {
+            return CHECK_BLACK;
+        } else if (m.equals("luma")) {
+            return CHECK_LUMA;
+        } else if (m.equals("alpha")) {
+            return CHECK_ALPHA;
+        } else if (m.equals("floyd-steinberg") || m.equals("floydsteinberg") || m.equals("dither")) {
+            return DITHER_FLOYD_STEINBERG;
+        } else if (m.equals("atkinson")) {
+            return DITHER_ATKINSON;
+        } else if (m.equals("ordered") || m.equals("bayer")) {
+            return DITHER_ORDERED;
+        }
+        return -1;
+    }
 
     /**
      * Returns the transparency (alpha) threshold used for the CHECK_ALPHA
@@ -199,6 +307,21 @@ public class ImageWrapper {
     public void setDotDensity(int dotDensity) {
         this.dotDensity = dotDensity;
     }
+    
+    public boolean isZplCompression() {
+        return zplCompression;
+    }
+    
+    /**
+     * Turns compressed ZPL graphic output on or off. When on, the image data
+     * is sent either as ZPL II ASCII compressed hex or as <code>:Z64:</code>
+     * (deflate and base64) data, whichever is smaller.
+     * 
+     * @param zplCompression 
+     */
+    public void setZplCompression(boolean zplCompression) {
+        this.zplCompression = zplCompression;
+    }
 
     public int getxPos() {
         return xPos;
@@ -222,21 +345,19 @@ public class ImageWrapper {
      * setQuantizationMethod. Should an invalied value be set as the
      * quantization method, CHECK_BLACK will be used
      *
-     * @param rgbPixel the color of the pixel as defined in getRGB()
+     * @param argb the color of the pixel as defined in getRGB()
      * @return true if the pixel should be black, false otherwise
      */
-    private boolean isBlack(int rgbPixel) {
-        Color color = new Color(rgbPixel, true);
-
-        int r = color.getRed();
-        int g = color.getGreen();
-        int b = color.getBlue();
-        int a = color.getAlpha();
+    private boolean isBlack(int argb) {
+        int a = argb >>> 24;
         switch (getImageQuantizationMethod()) {
             case CHECK_LUMA:
                 if (a < getLumaThreshold()) {
                     return false;     // assume pixels that are less opaque than the luma threshold should be considered to be white
                 }
+                int r = (argb >> 16) & 0xFF;
+                int g = (argb >> 8) & 0xFF;
+                int b = argb & 0xFF;
                 int luma = ((r * 299) + (g * 587) + (b * 114)) / 1000;      //luma formula
                 return luma < getLumaThreshold();                   //pixels that have less luma than the threshold are black
             case CHECK_ALPHA:
@@ -244,24 +365,79 @@ public class ImageWrapper {
             case CHECK_BLACK:
                 //only fully black pizels are black
             default:
-                return color.equals(Color.BLACK);              //The default
+                return argb == 0xFF000000;              //The default
 
         }
     }
 
     /**
-     * Sets ImageAsBooleanArray. boolean is used instead of int for memory
-     * considerations.
-     *
+     * Returns the luma of a pixel blended against a white background, from 0
+     * (black) to 255 (white). This is the input of the dithering methods.
+     * 
+     * @param argb the color of the pixel as defined in getRGB()
+     * @return the luma of the pixel
      */
-    private void generateBlackPixels() {
+    private static int getLuma(int argb) {
+        int a = argb >>> 24;
+        int r = (argb >> 16) & 0xFF;
+        int g = (argb >> 8) & 0xFF;
+        int b = argb & 0xFF;
+        int luma = ((r * 299) + (g * 587) + (b * 114)) / 1000;
+        return 255 - ((255 - luma) * a + 127) / 255;
+    }
+
+    /**
+     * Converts the image to monochrome and packs it into
+     * <code>imageAsPackedRows</code>, eight dots per byte with the leftmost
+     * dot in the high bit. Each row is padded with white dots to a whole
+     * number of bytes, so widths that aren't a multiple of 8 need no resizing.
+     * 
+     * Rows are read one at a time, so the error diffusion methods run in a
+     * few rows of memory. Threshold and ordered methods are split into row
+     * bands on large images and converted in parallel.
+     */
+    private void generatePackedRows() {
         LogIt.log("Converting image to monochrome");
-        BufferedImage bi = bufferedImage;
-        int h = bi.getHeight();
-        int w = bi.getWidth();
-        int[] rgbPixels = bi.getRGB(0, 0, w, h, null, 0, w);
-        int i = 0;
-        boolean[] pixels = new boolean[rgbPixels.length];
+        final int h = getHeight();
+        bytesPerRow = (getWidth() + 7) / 8;
+        final byte[] packed = new byte[bytesPerRow * h];
+        
+        switch (getImageQuantizationMethod()) {
+            case DITHER_FLOYD_STEINBERG:
+                ditherFloydSteinberg(packed);
+                break;
+            case DITHER_ATKINSON:
+                ditherAtkinson(packed);
+                break;
+            default:
+                int bands = Runtime.getRuntime().availableProcessors();
+                if (bands < 2 || (long)getWidth() * h < PARALLEL_PIXEL_THRESHOLD) {
+                    packRows(0, h, packed);
+                    break;
+                }
+                int bandHeight = (h + bands - 1) / bands;
+                ArrayList<Future<?>> futures = new ArrayList<Future<?>>(bands);
+                for (int y = 0; y < h; y += bandHeight) {
+                    final int start = y;
+                    final int end = Math.min(h, y + bandHeight);
+                    futures.add(getBandExecutor().submit(new Runnable() {
+                        public void run() {
+                            packRows(start, end, packed);
+                        }
+                    }));
+                }
+                try {
+                    for (Future<?> f : futures) {
+                        f.get();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while converting image", ex);
+                } catch (ExecutionException ex) {
+                    throw new RuntimeException("Could not convert image", ex.getCause());
+                }
+        }
+        
        /*
         * It makes most sense to have black pixels as 1's and white pixels
         * as zero's, however some printer manufacturers had this reversed
@@ -269,36 +445,249 @@ public class ImageWrapper {
         * uses 0's for black pixels.
         * See also: https://support.zebra.com/cpws/docs/eltron/gw_command.htm
         */
-        for (int rgbpixel : rgbPixels) {
-            pixels[i++] = languageType.requiresImageOutputInverted() ? !isBlack(rgbpixel) : 
-                    isBlack(rgbpixel);
+        if (languageType.requiresImageOutputInverted()) {
+            for (int i = 0; i < packed.length; i++) {
+                packed[i] ^= 0xFF;
+            }
         }
-        setImageAsBooleanArray(pixels);
+        imageAsPackedRows = packed;
     }
-
+    
     /**
-     * Converts the internal representation of the image into an array of bytes,
-     * suitable to be sent to a raw printer.
-     *
-     * @return The raw bytes that compose the image
-     */
-    private byte[] getBytes() {
-        LogIt.log("Generating byte array");
-        int[] ints = this.getImageAsIntArray();
-        byte[] bytes = new byte[ints.length];
-        for (int i = 0; i < ints.length; i++) {
-            bytes[i] = (byte) ints[i];
+     * Shared pool that converts row bands of large images. Its threads are
+     * daemons so an idle pool never keeps the applet alive.
+     */
+    private static synchronized ExecutorService getBandExecutor() {
+        if (bandExecutor == null) {
+            bandExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private int count = 0;
+                
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "qz-image-" + count++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
         }
-        return bytes;
+        return bandExecutor;
     }
-
-    private void generateIntArray() {
-        LogIt.log("Packing bits");
-        imageAsIntArray = new int[(int) (imageAsBooleanArray.length / 8)];
-        // Convert every eight zero's to a full byte, in decimal
-        for (int i = 0; i < imageAsIntArray.length; i++) {
-            for (int k = 0; k < 8; k++) {
-                imageAsIntArray[i] += (imageAsBooleanArray[8 * i + k] ? 1 : 0) << 7 - k;
+    
+    /**
+     * Packs rows <code>start</code> (inclusive) to <code>end</code> 
+     * (exclusive) with the threshold or ordered quantization methods. Each
+     * row only depends on its own pixels.
+     */
+    private void packRows(int start, int end, byte[] packed) {
+        RowReader reader = new RowReader();
+        int[] row = new int[getWidth()];
+        boolean ordered = getImageQuantizationMethod() == DITHER_ORDERED;
+        for (int y = start; y < end; y++) {
+            reader.read(y, row);
+            int i = y * bytesPerRow;
+            int acc = 0;
+            int bit = 0x80;
+            for (int x = 0; x < row.length; x++) {
+                boolean black = ordered 
+                        ? getLuma(row[x]) < BAYER_THRESHOLDS[((y & 7) << 3) | (x & 7)]
+                        : isBlack(row[x]);
+                if (black) {
+                    acc |= bit;
+                }
+                if ((bit >>>= 1) == 0) {
+                    packed[i++] = (byte)acc;
+                    acc = 0;
+                    bit = 0x80;
+                }
+            }
+            if (bit != 0x80) {
+                packed[i] = (byte)acc;
+            }
+        }
+    }
+    
+    /**
+     * Floyd-Steinberg error diffusion. Errors are kept in sixteenths in two 
+     * rolling rows, padded by one pixel on each side.
+     */
+    private void ditherFloydSteinberg(byte[] packed) {
+        RowReader reader = new RowReader();
+        int w = getWidth();
+        int[] row = new int[w];
+        int[] cur = new int[w + 2];
+        int[] next = new int[w + 2];
+        int threshold = getLumaThreshold();
+        for (int y = 0; y < getHeight(); y++) {
+            reader.read(y, row);
+            int i = y * bytesPerRow;
+            int acc = 0;
+            int bit = 0x80;
+            for (int x = 0; x < w; x++) {
+                int v = getLuma(row[x]) + cur[x + 1] / 16;
+                int err;
+                if (v < threshold) {
+                    acc |= bit;
+                    err = v;
+                } else {
+                    err = v - 255;
+                }
+                cur[x + 2] += err * 7;
+                next[x] += err * 3;
+                next[x + 1] += err * 5;
+                next[x + 2] += err;
+                if ((bit >>>= 1) == 0) {
+                    packed[i++] = (byte)acc;
+                    acc = 0;
+                    bit = 0x80;
+                }
+            }
+            if (bit != 0x80) {
+                packed[i] = (byte)acc;
+            }
+            int[] t = cur;
+            cur = next;
+            next = t;
+            Arrays.fill(next, 0);
+        }
+    }
+    
+    /**
+     * Atkinson error diffusion. Errors are kept in eighths in three rolling
+     * rows, padded by two pixels on each side.
+     */
+    private void ditherAtkinson(byte[] packed) {
+        RowReader reader = new RowReader();
+        int w = getWidth();
+        int[] row = new int[w];
+        int[] cur = new int[w + 4];
+        int[] next = new int[w + 4];
+        int[] after = new int[w + 4];
+        int threshold = getLumaThreshold();
+        for (int y = 0; y < getHeight(); y++) {
+            reader.read(y, row);
+            int i = y * bytesPerRow;
+            int acc = 0;
+            int bit = 0x80;
+            for (int x = 0; x < w; x++) {
+                int v = getLuma(row[x]) + cur[x + 2] / 8;
+                int err;
+                if (v < threshold) {
+                    acc |= bit;
+                    err = v;
+                } else {
+                    err = v - 255;
+                }
+                cur[x + 3] += err;
+                cur[x + 4] += err;
+                next[x + 1] += err;
+                next[x + 2] += err;
+                next[x + 3] += err;
+                after[x + 2] += err;
+                if ((bit >>>= 1) == 0) {
+                    packed[i++] = (byte)acc;
+                    acc = 0;
+                    bit = 0x80;
+                }
+            }
+            if (bit != 0x80) {
+                packed[i] = (byte)acc;
+            }
+            int[] t = cur;
+            cur = next;
+            next = after;
+            after = t;
+            Arrays.fill(after, 0);
+        }
+    }
+    
+    /**
+     * Reads rows of the image as ARGB values, the same as <code>getRGB()</code>
+     * would return them. <code>TYPE_INT_ARGB</code>, <code>TYPE_INT_RGB</code>,
+     * <code>TYPE_3BYTE_BGR</code> and <code>TYPE_BYTE_GRAY</code> rasters are
+     * read straight from their <code>DataBuffer</code>.
+     * 
+     * Each thread converting the image uses its own reader.
+     */
+    private class RowReader {
+        private final int type;
+        private final int w;
+        private int[] intData;
+        private byte[] byteData;
+        private int offset;
+        private int scan;
+        private int step;
+        private int[] bands;
+        private int[] grayLut;
+        
+        RowReader() {
+            BufferedImage bi = getBufferedImage();
+            Raster raster = bi.getRaster();
+            w = bi.getWidth();
+            
+            int t = bi.getType();
+            if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) {
+                t = BufferedImage.TYPE_CUSTOM;
+            }
+            
+            switch (t) {
+                case BufferedImage.TYPE_INT_ARGB:
+                case BufferedImage.TYPE_INT_RGB:
+                    DataBufferInt dbi = (DataBufferInt)raster.getDataBuffer();
+                    intData = dbi.getData();
+                    offset = dbi.getOffset();
+                    scan = ((SinglePixelPackedSampleModel)raster.getSampleModel()).getScanlineStride();
+                    break;
+                case BufferedImage.TYPE_3BYTE_BGR:
+                case BufferedImage.TYPE_BYTE_GRAY:
+                    DataBufferByte dbb = (DataBufferByte)raster.getDataBuffer();
+                    ComponentSampleModel sm = (ComponentSampleModel)raster.getSampleModel();
+                    byteData = dbb.getData();
+                    offset = dbb.getOffset();
+                    scan = sm.getScanlineStride();
+                    step = sm.getPixelStride();
+                    bands = sm.getBandOffsets();
+                    if (t == BufferedImage.TYPE_BYTE_GRAY) {
+                        // Gray levels aren't sRGB values, so convert them the 
+                        // way getRGB() does, once per level
+                        BufferedImage ramp = new BufferedImage(256, 1, BufferedImage.TYPE_BYTE_GRAY);
+                        for (int v = 0; v < 256; v++) {
+                            ramp.getRaster().setSample(v, 0, 0, v);
+                        }
+                        grayLut = ramp.getRGB(0, 0, 256, 1, null, 0, 256);
+                    }
+                    break;
+                default:
+            }
+            type = t;
+        }
+        
+        /**
+         * Fills <code>row</code> with the ARGB values of row <code>y</code>
+         */
+        void read(int y, int[] row) {
+            switch (type) {
+                case BufferedImage.TYPE_INT_ARGB:
+                    System.arraycopy(intData, offset + y * scan, row, 0, w);
+                    break;
+                case BufferedImage.TYPE_INT_RGB:
+                    for (int x = 0, p = offset + y * scan; x < w; x++) {
+                        row[x] = intData[p++] | 0xFF000000;
+                    }
+                    break;
+                case BufferedImage.TYPE_3BYTE_BGR:
+                    for (int x = 0, p = offset + y * scan; x < w; x++, p += step) {
+                        row[x] = 0xFF000000 
+                                | (byteData[p + bands[0]] & 0xFF) << 16 
+                                | (byteData[p + bands[1]] & 0xFF) << 8 
+                                | (byteData[p + bands[2]] & 0xFF);
+                    }
+                    break;
+                case BufferedImage.TYPE_BYTE_GRAY:
+                    for (int x = 0, p = offset + y * scan + bands[0]; x < w; x++, p += step) {
+                        row[x] = grayLut[byteData[p] & 0xFF];
+                    }
+                    break;
+                default:
+                    getBufferedImage().getRGB(0, y, w, 1, row, 0, w);
             }
         }
     }
@@ -320,37 +709,45 @@ public class ImageWrapper {
             case ESCP2:
                 appendEpsonSlices(this.getByteBuffer());
                 break;
+            case ESCPOS:
+                appendEscPosRaster(this.getByteBuffer());
+                break;
+            case ESCPOS_GRAPHICS:
+                appendEscPosGraphics(this.getByteBuffer());
+                break;
             case ZPL:
             case ZPLII:
-                String zplHexAsString = ByteUtilities.getHexString(getImageAsIntArray());
-                int byteLen = zplHexAsString.length() / 2;
-                int perRow = byteLen / getHeight();
+                byte[] rows = getImageAsPackedRows();
                 StringBuilder zpl = new StringBuilder("^GFA,")
-                        .append(byteLen).append(",").append(byteLen).append(",")
-                        .append(perRow).append(",").append(zplHexAsString);
+                        .append(rows.length).append(",").append(rows.length).append(",")
+                        .append(bytesPerRow).append(",");
                 
-                this.getByteBuffer().append(zpl, charset);
+                if (zplCompression) {
+                    zpl.append(getZplCompressedData());
+                    this.getByteBuffer().append(zpl, charset);
+                } else {
+                    this.getByteBuffer().append(zpl, charset).appendHex(rows, 0, rows.length);
+                }
                 break;
             case EPL:
             case EPL2:
                 StringBuilder epl = new StringBuilder("GW")
                         .append(getxPos()).append(",")
                         .append(getyPos()).append(",")
-                        .append(getWidth()/8).append(",")
+                        .append(bytesPerRow).append(",")
                         .append(getHeight()).append(",");
                 
-                this.getByteBuffer().append(epl, charset).append(getBytes());
+                this.getByteBuffer().append(epl, charset).append(getImageAsPackedRows());
                 break;
             case CPCL:
-                String cpclHexAsString = ByteUtilities.getHexString(getImageAsIntArray());
                 StringBuilder cpcl = new StringBuilder("EG ")
-                        .append((int)(getWidth()/8)).append(" ")
+                        .append(bytesPerRow).append(" ")
                         .append(getHeight()).append(" ")
                         .append(getxPos()).append(" ")
-                        .append(getyPos()).append(" ")
-                        .append(cpclHexAsString);
+                        .append(getyPos()).append(" ");
                 
-                this.getByteBuffer().append(cpcl, charset);
+                this.getByteBuffer().append(cpcl, charset)
+                        .appendHex(getImageAsPackedRows(), 0, getImageAsPackedRows().length);
                 break;
             default:
                 throw new InvalidRawImageException(charset.name() + " image conversion is not yet supported.");
@@ -359,45 +756,147 @@ public class ImageWrapper {
     }
 
     /**
-     * @return the width of the image
+     * Returns the ZPL <code>^GF</code> data field for the image in the 
+     * smallest of the ASCII compressed and <code>:Z64:</code> encodings.
+     * 
+     * @return The compressed graphic field data
      */
-    public int getWidth() {
-        return this.bufferedImage.getWidth();
+    private String getZplCompressedData() {
+        String ascii = getZplAsciiCompressed();
+        String z64 = getZplZ64();
+        LogIt.log("ZPL image data: " + getImageAsPackedRows().length * 2 + " hex, "
+                + ascii.length() + " ASCII compressed, " + z64.length() + " Z64");
+        return z64.length() < ascii.length() ? z64 : ascii;
     }
-
+    
     /**
-     * @return the height of the image
+     * Encodes the image with the ZPL II ASCII compression scheme. Repeated hex
+     * digits are prefixed with a count (G-Y for 1-19, g-z for 20-400), a
+     * comma fills the rest of a row with 0, an exclamation mark fills it with 
+     * F and a colon repeats the previous row.
+     * 
+     * @return The ASCII compressed graphic field data
      */
-    public int getHeight() {
-        return this.bufferedImage.getHeight();
+    private String getZplAsciiCompressed() {
+        byte[] rows = getImageAsPackedRows();
+        int digits = bytesPerRow * 2;
+        char[] hex = new char[digits];
+        StringBuilder out = new StringBuilder(rows.length / 4);
+        
+        for (int y = 0; y < getHeight(); y++) {
+            int start = y * bytesPerRow;
+            if (y > 0 && rowsEqual(rows, start - bytesPerRow, start)) {
+                out.append(':');
+                continue;
+            }
+            for (int i = 0; i < bytesPerRow; i++) {
+                int v = rows[start + i] & 0xFF;
+                hex[i * 2] = ByteUtilities.HEXES_ARRAY[v >>> 4];
+                hex[i * 2 + 1] = ByteUtilities.HEXES_ARRAY[v & 0x0F];
+            }
+            int x = 0;
+            while (x < digits) {
+                char c = hex[x];
+                int run = 1;
+                while (x + run < digits && hex[x + run] == c) {
+                    run++;
+                }
+                if (x + run == digits && (c == '0' || c == 'F')) {
+                    out.append(c == '0' ? ',' : '!');
+                } else {
+                    appendZplRepeatCount(out, run);
+                    out.append(c);
+                }
+                x += run;
+            }
+        }
+        return out.toString();
     }
-
+    
+    private boolean rowsEqual(byte[] rows, int a, int b) {
+        for (int i = 0; i < bytesPerRow; i++) {
+            if (rows[a + i] != rows[b + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static void appendZplRepeatCount(StringBuilder out, int count) {
+        if (count < 2) {
+            return;
+        }
+        while (count >= 400) {
+            out.append('z');
+            count -= 400;
+        }
+        if (count >= 20) {
+            out.append((char)('g' + count / 20 - 1));
+            count %= 20;
+        }
+        if (count > 0) {
+            out.append((char)('G' + count - 1));
+        }
+    }
+    
     /**
-     * @return the image as an array of booleans
+     * Encodes the image as <code>:Z64:</code> data, the deflated rows in 
+     * base64 followed by the CRC-16 of the base64 text.
+     * 
+     * @return The Z64 graphic field data
      */
-    private boolean[] getImageAsBooleanArray() {
-        return imageAsBooleanArray;
+    private String getZplZ64() {
+        byte[] rows = getImageAsPackedRows();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(rows);
+        deflater.finish();
+        ByteArrayBuilder deflated = new ByteArrayBuilder(rows.length / 4 + 64);
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            deflated.append(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+        
+        byte[] base64 = Base64.encodeBytesToBytes(deflated.getByteArray());
+        int crc = 0;
+        for (byte b : base64) {
+            crc ^= (b & 0xFF) << 8;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+        }
+        crc &= 0xFFFF;
+        
+        StringBuilder out = new StringBuilder(base64.length + 10).append(":Z64:");
+        for (byte b : base64) {
+            out.append((char)b);
+        }
+        out.append(':');
+        for (int shift = 12; shift >= 0; shift -= 4) {
+            out.append(Character.toLowerCase(ByteUtilities.HEXES_ARRAY[(crc >> shift) & 0x0F]));
+        }
+        return out.toString();
     }
 
     /**
-     * @param imageAsBooleanArray the imageAsBooleanArray to set
+     * @return the width of the image
      */
-    private void setImageAsBooleanArray(boolean[] imageAsBooleanArray) {
-        this.imageAsBooleanArray = imageAsBooleanArray;
+    public int getWidth() {
+        return this.bufferedImage.getWidth();
     }
 
     /**
-     * @return the imageAsIntArray
+     * @return the height of the image
      */
-    private int[] getImageAsIntArray() {
-        return imageAsIntArray;
+    public int getHeight() {
+        return this.bufferedImage.getHeight();
     }
 
     /**
-     * @param imageAsIntArray the imageAsIntArray to set
+     * @return the image as rows of packed bits
      */
-    private void setImageAsIntArray(int[] imageAsIntArray) {
-        this.imageAsIntArray = imageAsIntArray;
+    private byte[] getImageAsPackedRows() {
+        return imageAsPackedRows;
     }
 
     /**
@@ -409,8 +908,7 @@ public class ImageWrapper {
      */
     private final void init() {
         LogIt.log("Initializing Image Fields");
-        generateBlackPixels();
-        generateIntArray();
+        generatePackedRows();
     }
 
     public Charset getCharset() {
@@ -449,124 +947,141 @@ public class ImageWrapper {
      * @param b 
      */
     private void appendEpsonSlices(ByteArrayBuilder builder) {
-//        BitSet dots = data.getDots();
-//        outputStream.write(PrinterCommands.INIT);
- 
- 
-        // So we have our bitmap data sitting in a bit array called "dots."
-        // This is one long array of 1s (black) and 0s (white) pixels arranged
-        // as if we had scanned the bitmap from top to bottom, left to right.
-        // The printer wants to see these arranged in bytes stacked three high.
-        // So, essentially, we need to read 24 bits for x = 0, generate those
-        // bytes, and send them to the printer, then keep increasing x. If our
+        // So we have our bitmap data sitting in packed rows of 1s (black) and
+        // 0s (white) pixels, arranged as if we had scanned the bitmap from top
+        // to bottom, left to right. The printer wants to see these arranged
+        // in bytes stacked three high: for every x, 24 dots down.  If our
         // image is more than 24 dots high, we have to send a second bit image
         // command to draw the next slice of 24 dots in the image.
- 
+        int width = getWidth();
+        int height = getHeight();
+        int stripes = (height + 23) / 24;
+        int stripeLength = 5 + width * 3 + 1;
+        byte[] rows = getImageAsPackedRows();
+        
+        // The whole command is built in one buffer: line spacing, one bit
+        // image command per stripe and the line spacing reset
+        byte[] out = new byte[3 + stripes * stripeLength + 3];
+        
         // Set the line spacing to 24 dots, the height of each "stripe" of the
         // image that we're drawing. If we don't do this, and we need to
         // draw the bitmap in multiple passes, then we'll end up with some
         // whitespace between slices of the image since the default line
         // height--how much the printer moves on a newline--is 30 dots.
-        builder.append(new byte[] {0x1B, 0x33, 24});
- 
-        // OK. So, starting from x = 0, read 24 bits down and send that data
-        // to the printer. The offset variable keeps track of our global 'y'
-        // position in the image. For example, if we were drawing a bitmap
-        // that is 48 pixels high, then this while loop will execute twice,
-        // once for each pass of 24 dots. On the first pass, the offset is
-        // 0, and on the second pass, the offset is 24. We keep making
-        // these 24-dot stripes until we've execute past the height of the
-        // bitmap.
-        int offset = 0;
- 
-        while (offset < getHeight()) {
+        out[0] = 0x1B;
+        out[1] = 0x33;
+        out[2] = 24;
+        
+        int pos = 3;
+        for (int offset = 0; offset < height; offset += 24) {
             // The third and fourth parameters to the bit image command are
             // 'nL' and 'nH'. The 'L' and the 'H' refer to 'low' and 'high', respectively.
             // All 'n' really is is the width of the image that we're about to draw.
             // Since the width can be greater than 255 dots, the parameter has to
             // be split across two bytes, which is why the documentation says the
             // width is 'nL' + ('nH' * 256).
-            //builder.append(new byte[] {0x1B, 0x2A, 33, -128, 0});
-            byte nL = (byte)((int)(getWidth() % 256));
-            byte nH = (byte)((int)(getWidth()/256));
-            builder.append(new byte[] {0x1B, 0x2A, (byte)dotDensity, nL , nH});
- 
-            for (int x = 0; x < getWidth(); ++x) {
-                // Remember, 24 dots = 24 bits = 3 bytes.
-                // The 'k' variable keeps track of which of those
-                // three bytes that we're currently scribbling into.
-                for (int k = 0; k < 3; ++k) {
-                    byte slice = 0;
- 
-                    // A byte is 8 bits. The 'b' variable keeps track
-                    // of which bit in the byte we're recording.
-                    for (int b = 0; b < 8; ++b) {
-                        // Calculate the y position that we're currently
-                        // trying to draw. We take our offset, divide it
-                        // by 8 so we're talking about the y offset in
-                        // terms of bytes, add our current 'k' byte
-                        // offset to that, multiple by 8 to get it in terms
-                        // of bits again, and add our bit offset to it.
-                        int y = (((offset / 8) + k) * 8) + b;
- 
-                        // Calculate the location of the pixel we want in the bit array.
-                        // It'll be at (y * width) + x.
-                        int i = (y * getWidth()) + x;
- 
-                        // If the image (or this stripe of the image)
-                        // is shorter than 24 dots, pad with zero.
-                        boolean v = false;
-                        if (i < getImageAsBooleanArray().length) {
-                            v = getImageAsBooleanArray()[i];
+            out[pos] = 0x1B;
+            out[pos + 1] = 0x2A;
+            out[pos + 2] = (byte)dotDensity;
+            out[pos + 3] = (byte)(width % 256);
+            out[pos + 4] = (byte)(width / 256);
+            int data = pos + 5;
+            
+            // Walk the stripe a row at a time. Row 'r' of the stripe lands in
+            // byte r / 8 of each column's three bytes, at bit 7 - (r % 8).
+            // Rows past the bottom of the image are left as zero padding, and
+            // blank bytes of a row are skipped entirely.
+            int last = Math.min(24, height - offset);
+            for (int r = 0; r < last; r++) {
+                int k = r >> 3;
+                byte bit = (byte)(0x80 >> (r & 7));
+                int rowStart = (offset + r) * bytesPerRow;
+                for (int bx = 0; bx < bytesPerRow; bx++) {
+                    int v = rows[rowStart + bx] & 0xFF;
+                    if (v == 0) {
+                        continue;
+                    }
+                    int x = bx << 3;
+                    for (int mask = 0x80; mask != 0 && x < width; mask >>= 1, x++) {
+                        if ((v & mask) != 0) {
+                            out[data + x * 3 + k] |= bit;
                         }
- 
-                        // Finally, store our bit in the byte that we're currently
-                        // scribbling to. Our current 'b' is actually the exact
-                        // opposite of where we want it to be in the byte, so
-                        // subtract it from 7, shift our bit into place in a temp
-                        // byte, and OR it with the target byte to get it into there.
-                        slice |= (byte) ((v ? 1 : 0) << (7 - b));
                     }
- 
-                    // Phew! Write the damn byte to the buffer
-                    builder.append(new byte[] {slice});
                 }
             }
- 
+            
             // We're done with this 24-dot high pass. Render a newline
             // to bump the print head down to the next line
             // and keep on trucking.
-            offset += 24;
-            builder.append(new byte[] {10});
+            pos = data + width * 3;
+            out[pos++] = 10;
         }
  
         // Restore the line spacing to the default of 30 dots.
-        builder.append(new byte[] {0x1B, 0x33, 30});
-
+        out[pos] = 0x1B;
+        out[pos + 1] = 0x33;
+        out[pos + 2] = 30;
+        
+        builder.append(out);
     }
     
     /**
-     * Checks if the image width is a multiple of 8, and if it's not, 
-     * pads the image on the right side with blank pixels. <br />
-     * Due to limitations on the EPL2 language, image widths must be a multiple 
-     * of 8.
-     */
-    private void validateImageWidth()
-    {
-        BufferedImage oldBufferedImage = this.bufferedImage;
-        int height=oldBufferedImage.getHeight();
-        int width=oldBufferedImage.getWidth();
-        if(width%8!=0) 
-        {
-            int newWidth=(width/8+1)*8;
-            BufferedImage newBufferedImage=new BufferedImage(newWidth, height,
-                    BufferedImage.TYPE_INT_ARGB);
+     * Appends the image as ESC/POS raster bit images (<code>GS v 0</code>).
+     * The packed rows are sent as is, in bands of up to 
+     * <code>RASTER_BAND_HEIGHT</code> rows, so the printer prints the image in
+     * a single pass rather than in 24 dot stripes.
+     * 
+     * @param builder 
+     */
+    private void appendEscPosRaster(ByteArrayBuilder builder) {
+        byte[] rows = getImageAsPackedRows();
+        int height = getHeight();
+        builder.ensureCapacity(builder.getLength() + rows.length 
+                + 8 * ((height + RASTER_BAND_HEIGHT - 1) / RASTER_BAND_HEIGHT));
+        
+        for (int offset = 0; offset < height; offset += RASTER_BAND_HEIGHT) {
+            int bandHeight = Math.min(RASTER_BAND_HEIGHT, height - offset);
+            builder.append(new byte[] {0x1D, 0x76, 0x30, 0,
+                (byte)(bytesPerRow % 256), (byte)(bytesPerRow / 256),
+                (byte)(bandHeight % 256), (byte)(bandHeight / 256)});
+            builder.append(rows, offset * bytesPerRow, bandHeight * bytesPerRow);
+        }
+    }
+    
+    /**
+     * Appends the image as ESC/POS graphics (<code>GS ( L</code>). Each band
+     * is stored in the printer's graphics buffer as a monochrome raster and
+     * then printed. Bands too large for <code>GS ( L</code> use the extended
+     * <code>GS 8 L</code> form of the store command.
+     * 
+     * @param builder 
+     */
+    private void appendEscPosGraphics(ByteArrayBuilder builder) {
+        byte[] rows = getImageAsPackedRows();
+        int width = getWidth();
+        int height = getHeight();
+        builder.ensureCapacity(builder.getLength() + rows.length 
+                + 24 * ((height + RASTER_BAND_HEIGHT - 1) / RASTER_BAND_HEIGHT));
+        
+        for (int offset = 0; offset < height; offset += RASTER_BAND_HEIGHT) {
+            int bandHeight = Math.min(RASTER_BAND_HEIGHT, height - offset);
+            int dataLength = bandHeight * bytesPerRow;
             
-            Graphics2D g = newBufferedImage.createGraphics();
-            g.drawImage(oldBufferedImage, 0, 0, null);
-            g.dispose();
-            setBufferedImage(newBufferedImage);
-            init();
-       }
+            // Store: m=48 fn=112, monochrome (a=48), 1x1 scale, color 1 (c=49)
+            long p = 10L + dataLength;
+            if (p <= 0xFFFF) {
+                builder.append(new byte[] {0x1D, 0x28, 0x4C, (byte)(p & 0xFF), (byte)(p >> 8)});
+            } else {
+                builder.append(new byte[] {0x1D, 0x38, 0x4C, 
+                    (byte)(p & 0xFF), (byte)(p >> 8), (byte)(p >> 16), (byte)(p >> 24)});
+            }
+            builder.append(new byte[] {0x30, 0x70, 0x30, 1, 1, 0x31,
+                (byte)(width % 256), (byte)(width / 256),
+                (byte)(bandHeight % 256), (byte)(bandHeight / 256)});
+            builder.append(rows, offset * bytesPerRow, dataLength);
+            
+            // Print the stored graphics: m=48 fn=50
+            builder.append(new byte[] {0x1D, 0x28, 0x4C, 2, 0, 0x30, 0x32});
+        }
     }
 }
@@ -0,0 +1,426 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import javax.print.PrintException;
+import javax.print.PrintService;
+
+/**
+ * LPRPrinter sends raw jobs to a queue on a remote LPD server (RFC 1179),
+ * for printers and print servers that only accept jobs on port 515.
+ * 
+ * Each job is sent as a data file followed by its control file, streamed
+ * from the job data. LPD needs the size of the data file up front, so data of
+ * unknown length is first spooled to a temporary file. Jobs queued while a
+ * connection is sending are sent over the same "receive job" connection, 
+ * which is closed once the queue is empty.
+ */
+public class LPRPrinter implements Printer {
+    
+    /**
+     * Default LPD port
+     */
+    public static final int DEFAULT_PORT = 515;
+    
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 60000;
+    
+    private static int jobNumber = 0;
+    
+    /**
+     * Sends the queued jobs of every LPR printer. Each printer has at most one
+     * task running, so its jobs keep their order, and idle threads exit.
+     */
+    private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private int count = 0;
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "qz-lpr-" + (count++));
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    
+    /**
+     * A job waiting to be sent
+     */
+    private static class Job {
+        final InputStream data;
+        final long length;
+        final String title;
+        final SendListener listener;
+        
+        Job(InputStream data, long length, String title, SendListener listener) {
+            this.data = data;
+            this.length = length;
+            this.title = title;
+            this.listener = listener;
+        }
+    }
+    
+    private final String host;
+    private final int port;
+    private final String queue;
+    private final String localHost;
+    private final LinkedList<Job> jobs = new LinkedList<Job>();
+    private boolean sending;
+    private String name;
+    private String jobTitle;
+    private PrintService ps;
+    
+    /**
+     * @param host The LPD server
+     * @param port The LPD port, usually 515
+     * @param queue The queue name on the server
+     */
+    public LPRPrinter(String host, int port, String queue) {
+        this.host = host;
+        this.port = port;
+        this.queue = queue;
+        this.name = queue + "@" + host + ":" + port;
+        this.localHost = getLocalHostName();
+    }
+    
+    public String getName() {
+        return name;
+    }
+
+    public void printRaw(ByteArrayBuilder data) throws PrintException {
+        send(data.getInputStream(), data.getLength());
+    }
+
+    public void printRaw(InputStream data) throws PrintException {
+        send(data, -1);
+    }
+
+    public void printAlternate(ByteArrayBuilder data) throws PrintException {
+        printAlternate(data.getInputStream());
+    }
+
+    public void printAlternate(InputStream data) throws PrintException {
+        LogIt.log(Level.WARNING, "Alternate printing is not used by LPR printers, sending job over LPR.");
+        send(data, -1);
+    }
+    
+    /**
+     * Sends a job and waits for the server to accept it
+     * 
+     * @param data The job data
+     * @param length The length of the data, or -1 if it isn't known
+     * @throws PrintException if the job could not be sent
+     */
+    private void send(InputStream data, long length) throws PrintException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final IOException[] error = new IOException[1];
+        
+        submit(data, length, jobTitle, new SendListener() {
+            public void sent(long bytes) {
+                done.countDown();
+            }
+            
+            public void failed(IOException ex) {
+                error[0] = ex;
+                done.countDown();
+            }
+        });
+        
+        try {
+            done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new PrintException("Interrupted while printing to " + name);
+        }
+        if (error[0] != null) {
+            throw new PrintException(error[0]);
+        }
+    }
+    
+    /**
+     * Queue a job for the LPD server and return immediately. The data is read
+     * from the sending thread, so it should be held in memory.
+     * 
+     * @param data The job data
+     * @param length The length of the data, or -1 if it isn't known
+     * @param title The job title, shown by the server's queue
+     * @param listener Told once the server has accepted or refused the job
+     */
+    public void submit(InputStream data, long length, String title, SendListener listener) {
+        synchronized (jobs) {
+            jobs.add(new Job(data, length, title, listener));
+            if (!sending) {
+                sending = true;
+                executor.execute(new Runnable() {
+                    public void run() {
+                        sendQueued();
+                    }
+                });
+            }
+        }
+    }
+    
+    /**
+     * Opens a "receive job" connection and sends jobs over it until the queue
+     * is empty. If the connection fails, the job being sent and every job 
+     * queued behind it fail.
+     */
+    private void sendQueued() {
+        Socket socket = null;
+        Job job = null;
+        try {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), FileUtilities.STREAM_BUFFER_SIZE);
+            InputStream in = socket.getInputStream();
+            LogIt.log("Opened LPR connection to " + name);
+            
+            out.write(ascii("\002" + queue + "\n"));
+            out.flush();
+            readAck(in, "queue " + queue);
+            
+            while (true) {
+                synchronized (jobs) {
+                    job = jobs.poll();
+                    if (job == null) {
+                        sending = false;
+                        break;
+                    }
+                }
+                long sent = sendJob(job, out, in);
+                LogIt.log("Sent " + sent + " bytes to LPR queue " + name);
+                notifySent(job, sent);
+                job = null;
+            }
+        } catch (IOException ex) {
+            LogIt.log(Level.SEVERE, "Could not print to LPR queue " + name, ex);
+            LinkedList<Job> failed = new LinkedList<Job>();
+            if (job != null) {
+                failed.add(job);
+            }
+            synchronized (jobs) {
+                failed.addAll(jobs);
+                jobs.clear();
+                sending = false;
+            }
+            for (Job f : failed) {
+                notifyFailed(f, ex);
+            }
+        } finally {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+    
+    /**
+     * Sends a data file and its control file
+     * 
+     * @return The number of data bytes sent
+     */
+    private long sendJob(Job job, OutputStream out, InputStream in) throws IOException {
+        int number;
+        synchronized (LPRPrinter.class) {
+            number = jobNumber;
+            jobNumber = (jobNumber + 1) % 1000;
+        }
+        String suffix = (number < 10 ? "00" : number < 100 ? "0" : "") + number + localHost;
+        String dataFile = "dfA" + suffix;
+        String controlFile = "cfA" + suffix;
+        
+        File spoolFile = null;
+        InputStream data = job.data;
+        long length = job.length;
+        try {
+            if (length < 0) {
+                // LPD needs the size before the data, so spool it to disk
+                spoolFile = File.createTempFile("qz-lpr-", ".tmp");
+                OutputStream spool = new FileOutputStream(spoolFile);
+                try {
+                    length = FileUtilities.copyStream(data, spool);
+                } finally {
+                    spool.close();
+                }
+                data = new FileInputStream(spoolFile);
+            }
+            
+            out.write(ascii("\003" + length + " " + dataFile + "\n"));
+            out.flush();
+            readAck(in, "data file");
+            
+            byte[] buffer = new byte[FileUtilities.STREAM_BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int len = data.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+                if (len == -1) {
+                    throw new EOFException("Job data ended " + remaining + " bytes short of its length");
+                }
+                out.write(buffer, 0, len);
+                remaining -= len;
+            }
+            out.write(0);
+            out.flush();
+            readAck(in, "data file contents");
+        } finally {
+            if (spoolFile != null) {
+                data.close();
+                spoolFile.delete();
+            }
+        }
+        
+        String user = getUserName();
+        String title = job.title == null ? "qz-print" : job.title.replace('\n', ' ').replace('\r', ' ');
+        if (title.length() > 99) {
+            title = title.substring(0, 99);
+        }
+        byte[] control = ascii("H" + localHost + "\n"
+                + "P" + user + "\n"
+                + "J" + title + "\n"
+                + "l" + dataFile + "\n"
+                + "U" + dataFile + "\n"
+                + "N" + title + "\n");
+        
+        out.write(ascii("\002" + control.length + " " + controlFile + "\n"));
+        out.flush();
+        readAck(in, "control file");
+        out.write(control);
+        out.write(0);
+        out.flush();
+        readAck(in, "control file contents");
+        return length;
+    }
+    
+    private void readAck(InputStream in, String step) throws IOException {
+        int ack = in.read();
+        if (ack == -1) {
+            throw new EOFException("LPR server " + host + ":" + port + " closed the connection at " + step);
+        }
+        if (ack != 0) {
+            throw new IOException("LPR server " + host + ":" + port + " refused " + step + " (" + ack + ")");
+        }
+    }
+    
+    private static void notifySent(Job job, long bytes) {
+        try {
+            job.listener.sent(bytes);
+        } catch (RuntimeException ex) {
+            LogIt.log(Level.SEVERE, "Send listener error.", ex);
+        }
+    }
+    
+    private static void notifyFailed(Job job, IOException cause) {
+        try {
+            job.listener.failed(cause);
+        } catch (RuntimeException ex) {
+            LogIt.log(Level.SEVERE, "Send listener error.", ex);
+        }
+    }
+    
+    /**
+     * Control file lines are ASCII, other characters are replaced
+     */
+    private static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            char c = s.charAt(i);
+            bytes[i] = c < 0x80 ? (byte)c : (byte)'?';
+        }
+        return bytes;
+    }
+    
+    /**
+     * The host name sent in the control file, at most 31 characters
+     */
+    private static String getLocalHostName() {
+        String hostName;
+        try {
+            hostName = InetAddress.getLocalHost().getHostName();
+        } catch (IOException ex) {
+            hostName = "localhost";
+        }
+        int dot = hostName.indexOf('.');
+        if (dot > 0) {
+            hostName = hostName.substring(0, dot);
+        }
+        return hostName.length() > 31 ? hostName.substring(0, 31) : hostName;
+    }
+    
+    /**
+     * The user name for the control file's P line, which RFC 1179 limits to
+     * 31 characters
+     */
+    private static String getUserName() {
+        String user;
+        try {
+            user = System.getProperty("user.name");
+        } catch (SecurityException ex) {
+            user = null;
+        }
+        if (user == null || user.trim().length() == 0) {
+            user = "qz-print";
+        }
+        user = user.trim().replace('\n', ' ').replace('\r', ' ');
+        return user.length() > 31 ? user.substring(0, 31) : user;
+    }
+    
+    public boolean ready() {
+        return true;
+    }
+
+    public void setPrintService(PrintService ps) {
+        this.ps = ps;
+    }
+
+    public PrintService getPrintService() {
+        return ps;
+    }
+
+    public String getType() {
+        return "LPR";
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public void setJobTitle(String jobTitle) {
+        this.jobTitle = jobTitle;
+    }
+}
@@ -28,7 +28,7 @@ package qz;
  */
 public enum LanguageType {
 
-    ZPLII, ZPL, EPL2, EPL, CPCL, ESCP, ESCP2, UNKNOWN;
+    ZPLII, ZPL, EPL2, EPL, CPCL, ESCP, ESCP2, ESCPOS, ESCPOS_GRAPHICS, UNKNOWN;
 
     LanguageType() {
     }
@@ -53,6 +53,10 @@ public enum LanguageType {
             return ESCP;
         } else if (s.equalsIgnoreCase("ESC\\P")) {
             return ESCP;
+        } else if (s.equalsIgnoreCase("ESC/POS RASTER")) {
+            return ESCPOS;
+        } else if (s.equalsIgnoreCase("ESC/POS GRAPHICS")) {
+            return ESCPOS_GRAPHICS;
         } else if (s.equalsIgnoreCase("ESC/P2")) {
             return ESCP2;
         } else if (s.equalsIgnoreCase("EPSON")) {
@@ -21,6 +21,7 @@
  */
 package qz;
 
+import java.io.InputStream;
 import java.util.logging.Level;
 import javax.print.DocFlavor;
 import javax.print.PrintException;
@@ -51,12 +52,23 @@ public class PSPrinter implements Printer {
         LogIt.log(Level.WARNING, "Cannot print raw job to PostScript printer.");
     }
 
+    public void printRaw(InputStream data) throws PrintException {
+        LogIt.log(Level.WARNING, "Cannot print raw job to PostScript printer.");
+    }
+
     public void printAlternate(ByteArrayBuilder data) throws PrintException {
         LogIt.log(Level.WARNING, "Cannot use alternate printing on a PostScript printer.");
     }
+
+    public void printAlternate(InputStream data) throws PrintException {
+        LogIt.log(Level.WARNING, "Cannot use alternate printing on a PostScript printer.");
+    }
         
+    /**
+     * @return false if the print service reports its queue as stopped
+     */
     public boolean ready() {
-        return true;
+        return ps == null || StatusMonitor.getDefault().getServiceStatus(ps).isReady();
     }
 
     public void setPrintService(PrintService ps) {
@@ -25,10 +25,13 @@
 package qz;
 
 import java.applet.Applet;
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
 import java.util.logging.Level;
 import qz.json.JSONArray;
 
@@ -72,6 +75,7 @@ public class PrintApplet extends Applet {
     @Override
     public void stop() {
         spooler.closePort("");
+        spooler.stop();
         super.stop();
     }
     
@@ -82,7 +86,7 @@ public class PrintApplet extends Applet {
     
     /**
      * Cancel a job
-     * @param jobIndex The index of the job to cancel
+     * @param jobIndex The id of the job to cancel, as reported by getQueueInfo
      */
     public void cancelJob(int jobIndex) {
         spooler.cancelJob(jobIndex);
@@ -108,13 +112,56 @@ public class PrintApplet extends Applet {
      * Returns a string with the contents of the job data. This is only really
      * useful for Raw data PrintJobs
      * 
-     * @param jobIndex The index of the job to get info for
+     * @param jobIndex The id of the job to get info for, as reported by 
+     * getQueueInfo
      * @return A String representation of the job data
      */
     public String getJobInfo(int jobIndex) {
         return spooler.getJobInfo(jobIndex);
     }
     
+    /**
+     * Set the number of finished jobs kept in the queue info. Older finished
+     * jobs are reduced to a summary and their data is freed. A negative value
+     * keeps every job.
+     * 
+     * @param maxRetainedJobs The number of finished jobs to keep
+     */
+    public void setMaxRetainedJobs(int maxRetainedJobs) {
+        spooler.setMaxRetainedJobs(maxRetainedJobs);
+    }
+    
+    /**
+     * Set the number of threads used to prepare jobs for printing, such as
+     * reading files and converting images. Default is 2.
+     * 
+     * @param preparationThreads The number of preparation threads
+     */
+    public void setPreparationThreads(int preparationThreads) {
+        spooler.setPreparationThreads(preparationThreads);
+    }
+    
+    /**
+     * Set how long a raw job waits for the printer to confirm it before the
+     * next job is sent. Default is 30000.
+     * 
+     * @param rawPrintTimeout The timeout in milliseconds, 0 to wait 
+     * indefinitely
+     */
+    public void setRawPrintTimeout(int rawPrintTimeout) {
+        spooler.setRawPrintTimeout(rawPrintTimeout);
+    }
+    
+    /**
+     * Set how long finished jobs are kept before being reduced to a summary.
+     * A value of 0 disables time based eviction.
+     * 
+     * @param seconds The retention time in seconds
+     */
+    public void setJobRetentionTime(int seconds) {
+        spooler.setJobRetentionTime(seconds);
+    }
+    
     /**
      * Calling findPrinter with no input will find the default printer
      */
@@ -319,6 +366,154 @@ public class PrintApplet extends Applet {
         btools.notifyBrowser("qzDoneAppending");
     }
     
+    /**
+     * Set how raw images appended after this call are converted to black and 
+     * white. Accepted values are "black", "luma" (default), "alpha", 
+     * "floyd-steinberg", "atkinson" and "ordered". The dithering methods give
+     * much better results for photos and gradients.
+     * 
+     * @param method The name of the quantization method
+     */
+    public void setImageQuantization(String method) {
+        int imageQuantization = ImageWrapper.getQuantizationMethod(method);
+        if (imageQuantization < 0) {
+            LogIt.log(Level.WARNING, "Cannot translate image quantization value of '"
+                    + method + "'.  Using 'luma'.");
+            imageQuantization = ImageWrapper.CHECK_LUMA;
+        }
+        spooler.setImageQuantization(imageQuantization);
+    }
+    
+    /**
+     * Turn compressed ZPL image output on or off. When on, ZPL images appended
+     * after this call are sent as ASCII compressed or Z64 graphic fields,
+     * whichever is smaller, instead of plain hex.
+     * 
+     * @param zplCompression The new value of zplCompression
+     */
+    public void setZplCompression(boolean zplCompression) {
+        spooler.setZplCompression(zplCompression);
+    }
+    
+    /**
+     * Set the total size of converted raw image commands kept in memory.
+     * Images are looked up by content and conversion settings, so repeated
+     * images like logos are only converted once.
+     * 
+     * @param maxBytes The cache size in bytes, 0 disables the memory cache
+     */
+    public void setImageCacheSize(long maxBytes) {
+        spooler.getImageCache().setMaxBytes(maxBytes);
+    }
+    
+    /**
+     * Set a local directory converted raw image commands are saved to, so
+     * they can be reused after a restart
+     * 
+     * @param directory The cache directory, or an empty string to disable
+     */
+    public void setImageCacheDirectory(String directory) {
+        setImageCacheDirectory(directory, spooler.getImageCache().getMaxDiskBytes());
+    }
+    
+    /**
+     * Set a local directory converted raw image commands are saved to, and
+     * the total size of the commands kept in it. The least recently used
+     * commands are deleted first.
+     * 
+     * @param directory The cache directory, or an empty string to disable
+     * @param maxBytes The total size of the commands kept in the directory
+     */
+    public void setImageCacheDirectory(String directory, final long maxBytes) {
+        final File cacheDirectory = directory == null || directory.trim().length() == 0 ? null : new File(directory);
+        AccessController.doPrivileged(new PrivilegedAction<Object>() {
+            public Object run() {
+                spooler.getImageCache().setDirectory(cacheDirectory, maxBytes);
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Returns the image cache counters
+     * 
+     * @return A JSON object with the cache hits, misses, disk hits, entry
+     * count, size and maximum size, and the size and maximum size of the
+     * cache directory
+     */
+    public String getImageCacheStats() {
+        return spooler.getImageCacheStats().toString();
+    }
+    
+    /**
+     * Set the total size of fetched files, images, PDFs and XML documents kept
+     * in memory. Cached resources are revalidated with the server on every 
+     * use, so an unchanged resource is only downloaded once.
+     * 
+     * @param maxBytes The cache size in bytes, 0 disables the memory cache
+     */
+    public void setResourceCacheSize(long maxBytes) {
+        ResourceCache.getDefault().setMaxBytes(maxBytes);
+    }
+    
+    /**
+     * Set a local directory fetched resources are saved to, so they can be 
+     * revalidated instead of downloaded after a restart
+     * 
+     * @param directory The cache directory, or an empty string to disable
+     * @param maxBytes The total size of the resources kept in the directory
+     */
+    public void setResourceCacheDirectory(String directory, final long maxBytes) {
+        final File cacheDirectory = directory == null || directory.trim().length() == 0 ? null : new File(directory);
+        AccessController.doPrivileged(new PrivilegedAction<Object>() {
+            public Object run() {
+                ResourceCache.getDefault().setDirectory(cacheDirectory, maxBytes);
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Set how long to wait for a remote host to accept a 
+     * <code>printToHost</code> connection
+     * 
+     * @param timeout The timeout in milliseconds, 0 to wait indefinitely
+     */
+    public void setHostConnectTimeout(int timeout) {
+        HostConnectionPool.getDefault().setConnectTimeout(timeout);
+    }
+    
+    /**
+     * Set how long a <code>printToHost</code> job may go without the printer
+     * accepting any of it before its connection is dropped
+     * 
+     * @param timeout The timeout in milliseconds, 0 to wait indefinitely
+     */
+    public void setHostWriteTimeout(int timeout) {
+        HostConnectionPool.getDefault().setWriteTimeout(timeout);
+    }
+    
+    /**
+     * Set how long a <code>printToHost</code> connection is kept open after a
+     * job, so the next job to the same host can reuse it
+     * 
+     * @param keepAlive The time in milliseconds, 0 to close the connection
+     * after every job
+     */
+    public void setHostKeepAlive(int keepAlive) {
+        HostConnectionPool.getDefault().setKeepAlive(keepAlive);
+    }
+    
+    /**
+     * Returns the <code>printToHost</code> connection counters
+     * 
+     * @return A JSON string with the jobs sent, connections opened and 
+     * reused, retries, failures, bytes sent, open connections and queued jobs
+     */
+    public String getHostConnectionStats() {
+        return HostConnectionPool.getDefault().getStats().toString();
+    }
+    
     /**
      * Appends a PostScript image to the current print job
      * 
@@ -450,6 +645,29 @@ public class PrintApplet extends Applet {
         btools.notifyBrowser("qzDonePrinting");
     }
     
+    /**
+     * printToLPR will send the current job to a queue on an LPD server on 
+     * port 515
+     * 
+     * @param jobHost The LPD server
+     * @param queue The queue name on the server
+     */
+    public void printToLPR(String jobHost, String queue) {
+        printToLPR(jobHost, LPRPrinter.DEFAULT_PORT, queue);
+    }
+    
+    /**
+     * printToLPR will send the current job to a queue on an LPD server
+     * 
+     * @param jobHost The LPD server
+     * @param jobPort The LPD port
+     * @param queue The queue name on the server
+     */
+    public void printToLPR(String jobHost, int jobPort, String queue) {
+        spooler.printToLPR(jobHost, jobPort, queue);
+        btools.notifyBrowser("qzDonePrinting");
+    }
+    
     /**
      * Gets the current version of the qz-print applet
      * 
@@ -632,6 +850,116 @@ public class PrintApplet extends Applet {
     public boolean isAlternatePrinting() {
         return spooler.isAlternatePrinting();
     }
+    
+    /**
+     * Set how many alternate printing processes may run at once. Default is
+     * 2.
+     * 
+     * @param maxProcesses The number of processes
+     */
+    public void setAlternatePrintProcesses(int maxProcesses) {
+        AlternatePrintQueue.getDefault().setMaxProcesses(maxProcesses);
+    }
+    
+    /**
+     * Turn IPP printing on or off. Raw jobs are then sent straight to the 
+     * CUPS scheduler over IPP instead of through the Java print service.
+     * 
+     * @param ippPrint true to use IPP printing
+     */
+    public void useIPPPrinting(boolean ippPrint) {
+        spooler.useIPPPrinting(ippPrint);
+    }
+    
+    /**
+     * Set the address of the CUPS scheduler used by IPP printing. Default is
+     * http://localhost:631.
+     * 
+     * @param ippServer The scheduler's URL
+     */
+    public void setIPPServer(String ippServer) {
+        spooler.setIPPServer(ippServer);
+    }
+    
+    /**
+     * Get the state of a job sent with IPP printing, as last reported by
+     * CUPS. The state is refreshed in the background, so poll this to 
+     * follow it.
+     * 
+     * @param jobId The id of the job
+     * @return The IPP job state, such as "processing" or "completed", or an
+     * empty String if it isn't known
+     */
+    public String getPrinterJobState(int jobId) {
+        return spooler.getPrinterJobState(jobId);
+    }
+    
+    /**
+     * Get the last known status of the current printer. The status is 
+     * refreshed in the background, so poll this to follow it.
+     * 
+     * @return A JSON string with the state, such as "READY" or "PAUSED", a
+     * message, whether jobs are sent to it and when it was checked
+     */
+    public String getPrinterStatus() {
+        return spooler.getPrinterStatus().toJSON().toString();
+    }
+    
+    /**
+     * Get the last known status of a <code>printToHost</code> printer. A 
+     * status language must be set for the printer.
+     * 
+     * @param jobHost The printer's host
+     * @param jobPort The printer's port
+     * @return A JSON string with the printer's status
+     */
+    public String getHostStatus(String jobHost, int jobPort) {
+        return StatusMonitor.getDefault().getHostStatus(jobHost, jobPort).toJSON().toString();
+    }
+    
+    /**
+     * Set the language used to ask <code>printToHost</code> printers for
+     * their status. Jobs are held while a printer reports it is paused, out
+     * of media or its buffer is full. Off by default.
+     * 
+     * @param lang ZPL, EPL or ESC/POS, or an empty String to turn it off
+     */
+    public void setHostStatusLanguage(String lang) {
+        StatusMonitor.getDefault().setHostLanguage(getStatusLanguage(lang));
+    }
+    
+    /**
+     * Set the status language of a single <code>printToHost</code> printer
+     * 
+     * @param jobHost The printer's host
+     * @param jobPort The printer's port
+     * @param lang ZPL, EPL or ESC/POS, or an empty String to use the default
+     */
+    public void setHostStatusLanguage(String jobHost, int jobPort, String lang) {
+        StatusMonitor.getDefault().setHostLanguage(jobHost, jobPort, getStatusLanguage(lang));
+    }
+    
+    private LanguageType getStatusLanguage(String lang) {
+        if(lang == null || lang.trim().length() == 0) {
+            return null;
+        }
+        LanguageType type = LanguageType.getType(lang.trim());
+        if(type == LanguageType.UNKNOWN) {
+            LogIt.log(Level.WARNING, "Unknown status language: " + lang);
+            return null;
+        }
+        return type;
+    }
+    
+    /**
+     * Set how long a printer's status is used before it is checked again.
+     * Default is 2000.
+     * 
+     * @param ttl The time in milliseconds
+     */
+    public void setPrinterStatusTTL(int ttl) {
+        StatusMonitor.getDefault().setTTL(ttl);
+    }
 
     /**
      * findPorts starts the process of finding the list of serial ports.
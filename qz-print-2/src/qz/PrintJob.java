@@ -33,10 +33,17 @@ import static java.awt.print.Printable.PAGE_EXISTS;
 import java.awt.print.PrinterException;
 import java.awt.print.PrinterJob;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.ListIterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import javax.print.PrintException;
 import javax.print.attribute.Attribute;
@@ -54,13 +61,11 @@ import qz.exception.NullCommandException;
  * 
  * @author Thomas Hart
  */
-public class PrintJob extends JLabel implements Runnable, Printable {
+public class PrintJob extends JLabel implements Printable {
     
-    private PrintJobState state = PrintJobState.STATE_CREATED;
+    private volatile PrintJobState state = PrintJobState.STATE_CREATED;
     private final String title = "Print Job";
     private final ArrayList<PrintJobElement> rawData = new ArrayList<PrintJobElement>();;
-    private Boolean running = true;
-    private final int updateDelay = 100;
     private Printer printer;
     private PrintJobType type;
     private Graphics graphics;
@@ -72,28 +77,27 @@ public class PrintJob extends JLabel implements Runnable, Printable {
     private boolean logPSFeatures;
     private boolean autoSize;
     private boolean alternatePrint;
-    
-    public void run() {
-        
-        this.autoSize = false;
-        
-        while(running) {
-            /*try {
-                
-            } catch (InterruptedException ex) {
-                LogIt.log(Level.SEVERE, "PrintJob process was interrupted.", ex);
-                running = false;
-            }
-            */
-        }
-    }
+    private int imageQuantization = ImageWrapper.CHECK_LUMA;
+    private boolean zplCompression;
+    private ImageCache imageCache;
+    private DocumentSplitter splitter;
+    private PrintSpooler spooler;
+    private boolean dispatched;
+    private int id;
+    private volatile long finishedTime;
+    private volatile int printerJobId;
+    private volatile String error;
+    private final Object stateLock = new Object();
     
     /**
      * Cancel a print job.
      */
     public void cancel() {
-        state = PrintJobState.STATE_CANCELLED;
-        running = false;
+        PrintJobState oldState = setJobState(PrintJobState.STATE_CANCELLED);
+        // A job being sent releases its own data once the printer returns
+        if(oldState != PrintJobState.STATE_SENDING && oldState != PrintJobState.STATE_CANCELLED) {
+            releaseData();
+        }
     }
     
     /**
@@ -105,6 +109,166 @@ public class PrintJob extends JLabel implements Runnable, Printable {
         return state;
     }
     
+    /**
+     * Set the job's state and wake the spooler so it can act on the change.
+     * A cancelled job stays cancelled.
+     * 
+     * @param newState The new PrintJobState
+     * @return The state the job was in before the change
+     */
+    private PrintJobState setJobState(PrintJobState newState) {
+        PrintJobState oldState;
+        synchronized(stateLock) {
+            oldState = state;
+            if(oldState == PrintJobState.STATE_CANCELLED) {
+                return oldState;
+            }
+            if(newState == PrintJobState.STATE_COMPLETE || newState == PrintJobState.STATE_FAILED
+                    || newState == PrintJobState.STATE_CANCELLED) {
+                finishedTime = System.currentTimeMillis();
+            }
+            state = newState;
+        }
+        if(spooler != null) {
+            spooler.jobStateChanged(this);
+        }
+        return oldState;
+    }
+    
+    /**
+     * Check whether the job has reached a terminal state.
+     * 
+     * @return true if the job is complete, failed or cancelled
+     */
+    public boolean isFinished() {
+        return state == PrintJobState.STATE_COMPLETE || state == PrintJobState.STATE_FAILED
+                || state == PrintJobState.STATE_CANCELLED;
+    }
+    
+    /**
+     * Get the reason the job failed.
+     * 
+     * @return The error message, or null if the job hasn't failed
+     */
+    public String getError() {
+        return error;
+    }
+    
+    /**
+     * Get the time the job completed, failed or was cancelled.
+     * 
+     * @return The time in milliseconds, or 0 if the job is not finished
+     */
+    public long getFinishedTime() {
+        return finishedTime;
+    }
+    
+    /**
+     * Get the id the printer's spooler gave the job, such as a CUPS job id
+     * for an IPP printer.
+     * 
+     * @return The printer's job id, or 0 if it didn't give one
+     */
+    public int getPrinterJobId() {
+        return printerJobId;
+    }
+    
+    /**
+     * Get the id the spooler assigned to this job.
+     * 
+     * @return The job id
+     */
+    public int getId() {
+        return id;
+    }
+    
+    /**
+     * Set the id used to refer to this job from the JavaScript interface.
+     * 
+     * @param id The job id
+     */
+    void setId(int id) {
+        this.id = id;
+    }
+    
+    /**
+     * Drop the job's elements and any rendered content. This is called once
+     * the job is finished so payloads such as images and PDFs don't stay
+     * reachable from the spool.
+     */
+    void releaseData() {
+        synchronized(rawData) {
+            ListIterator<PrintJobElement> dataIterator = rawData.listIterator();
+            while(dataIterator.hasNext()) {
+                dataIterator.next().release();
+            }
+            rawData.clear();
+        }
+        setText(null);
+    }
+    
+    /**
+     * Get the key of the dispatch lane this job is sent through. Jobs sharing a
+     * key are sent one at a time in the order they were queued.
+     * 
+     * @return The destination key for this job
+     */
+    String getDestination() {
+        if(jobHost != null) {
+            return "HOST:" + jobHost + ":" + jobPort;
+        }
+        else if(printer != null) {
+            return printer.getType() + ":" + printer.getName();
+        }
+        return "";
+    }
+    
+    /**
+     * Mark the job as handed to a dispatch lane so the spooler will not send it
+     * a second time.
+     * 
+     * @return false if the job had already been dispatched
+     */
+    synchronized boolean dispatch() {
+        if(dispatched) {
+            return false;
+        }
+        dispatched = true;
+        return true;
+    }
+    
+    /**
+     * Check whether the job has already been handed to a dispatch lane.
+     * 
+     * @return true if the job has been dispatched
+     */
+    synchronized boolean isDispatched() {
+        return dispatched;
+    }
+    
+    /**
+     * Check whether the job's printer is ready for it. Remote hosts are
+     * checked with the status cached by the <code>StatusMonitor</code>, so
+     * this never waits on the printer.
+     * 
+     * @return true if the job can be sent now
+     */
+    boolean isPrinterReady() {
+        if(jobHost != null) {
+            return StatusMonitor.getDefault().getHostStatus(jobHost, jobPort).isReady();
+        }
+        return printer.ready();
+    }
+    
+    /**
+     * Set the spooler that should be signalled whenever this job changes state.
+     * 
+     * @param spooler The owning PrintSpooler
+     */
+    void setSpooler(PrintSpooler spooler) {
+        this.spooler = spooler;
+    }
+    
     /**
      * Get the current job title.
      * 
@@ -144,6 +308,9 @@ public class PrintJob extends JLabel implements Runnable, Printable {
         type = PrintJobType.TYPE_RAW;
         try {
             PrintJobElement pje = new PrintJobElement(this, imagePath, PrintJobElementType.TYPE_IMAGE, charset, lang, imageX, imageY);
+            pje.setImageQuantization(imageQuantization);
+            pje.setZplCompression(zplCompression);
+            pje.setImageCache(imageCache);
             rawData.add(pje);
         }
         catch(NullPointerException ex) {
@@ -163,6 +330,9 @@ public class PrintJob extends JLabel implements Runnable, Printable {
         type = PrintJobType.TYPE_RAW;
         try {
             PrintJobElement pje = new PrintJobElement(this, imagePath, PrintJobElementType.TYPE_IMAGE, charset, lang, dotDensity);
+            pje.setImageQuantization(imageQuantization);
+            pje.setZplCompression(zplCompression);
+            pje.setImageCache(imageCache);
             rawData.add(pje);
         }
         catch(NullPointerException ex) {
@@ -241,29 +411,107 @@ public class PrintJob extends JLabel implements Runnable, Printable {
      * @throws NullCommandException 
      */
     public void prepareJob() throws InvalidRawImageException, NullCommandException {
+        prepareJob(null);
+    }
+    
+    /**
+     * prepareJob processes the list of PrintJobElements and gets the data
+     * prepared for printing. When an executor is supplied the elements are
+     * prepared concurrently. Each element keeps its own prepared data, so the
+     * job still prints in append order.
+     * 
+     * @param executor The executor to prepare elements on, or null to prepare
+     * them one after another
+     * @throws InvalidRawImageException
+     * @throws NullCommandException 
+     */
+    public void prepareJob(ExecutorService executor) throws InvalidRawImageException, NullCommandException {
         
-        state = PrintJobState.STATE_PROCESSING;
+        setJobState(PrintJobState.STATE_PROCESSING);
         
-        ListIterator dataIterator = rawData.listIterator();
+        ArrayList<PrintJobElement> elements;
+        synchronized(rawData) {
+            elements = new ArrayList<PrintJobElement>(rawData);
+        }
+        
+        if(executor == null || elements.size() < 2) {
+            ListIterator<PrintJobElement> dataIterator = elements.listIterator();
 
-        while(dataIterator.hasNext()) {
+            while(dataIterator.hasNext()) {
+                try {
+                    PrintJobElement pje = dataIterator.next();
+                    pje.prepare();
+                } catch (IOException ex) {
+                    LogIt.log(Level.SEVERE, "Could not prepare job.", ex);
+                }
+            }
+        }
+        else {
+            ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>(elements.size());
+            for(final PrintJobElement pje : elements) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return pje.prepare();
+                    }
+                }));
+            }
+            
             try {
-                PrintJobElement pje = (PrintJobElement) dataIterator.next();
-                pje.prepare();
-            } catch (IOException ex) {
-                LogIt.log(Level.SEVERE, "Could not prepare job.", ex);
+                for(Future<Boolean> result : results) {
+                    waitForElement(result);
+                }
+            }
+            finally {
+                // Stop any remaining elements if one of them failed
+                for(Future<Boolean> result : results) {
+                    result.cancel(true);
+                }
             }
         }
         
-        state = PrintJobState.STATE_PROCESSED;
+        setJobState(PrintJobState.STATE_PROCESSED);
         
     }
     
+    /**
+     * Wait for a single element to finish preparing, rethrowing the errors
+     * prepareJob would have thrown had it prepared the element itself.
+     * 
+     * @param result The element's pending result
+     * @throws InvalidRawImageException
+     * @throws NullCommandException 
+     */
+    private void waitForElement(Future<Boolean> result) throws InvalidRawImageException, NullCommandException {
+        try {
+            result.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new NullCommandException("Job preparation was interrupted.");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof IOException) {
+                LogIt.log(Level.SEVERE, "Could not prepare job.", cause);
+            }
+            else if(cause instanceof InvalidRawImageException) {
+                throw (InvalidRawImageException)cause;
+            }
+            else if(cause instanceof NullCommandException) {
+                throw (NullCommandException)cause;
+            }
+            else if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+    
     /**
      * Mark the PrintJob as queued
      */
     public void queue() {
-        state = PrintJobState.STATE_QUEUED;
+        setJobState(PrintJobState.STATE_QUEUED);
     }
     
     /**
@@ -299,31 +547,101 @@ public class PrintJob extends JLabel implements Runnable, Printable {
         
     }
     
+    /**
+     * Get the job's raw data as a single stream over all of its elements, in
+     * append order. The elements' data is read in place.
+     * 
+     * @return An InputStream of the raw job data
+     */
+    InputStream getRawStream() {
+        ArrayList<InputStream> streams;
+        synchronized(rawData) {
+            streams = new ArrayList<InputStream>(rawData.size());
+            for(PrintJobElement pje : rawData) {
+                streams.add(pje.getData().getInputStream());
+            }
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+    
+    /**
+     * Get the length of the job's raw data over all of its elements.
+     * 
+     * @return The length in bytes
+     */
+    long getRawLength() {
+        long length = 0;
+        synchronized(rawData) {
+            for(PrintJobElement pje : rawData) {
+                length += pje.getData().getLength();
+            }
+        }
+        return length;
+    }
+    
     /**
      * print concatenates the PrintJobElements and sends the data to the proper
      * printer
      */
     public void print() {
-        state = PrintJobState.STATE_SENDING;
+        if(setJobState(PrintJobState.STATE_SENDING) == PrintJobState.STATE_CANCELLED) {
+            LogIt.log(Level.WARNING, "Print job was cancelled before sending.");
+            return;
+        }
         
         if(type == PrintJobType.TYPE_RAW) {
-            ByteArrayBuilder jobData = new ByteArrayBuilder();
-
-            // Concatenate all the PrintJobElements into one ByteArrayBuilder
-            ListIterator dataIterator = rawData.listIterator();
-
-            while(dataIterator.hasNext()) {
-                PrintJobElement pje = (PrintJobElement) dataIterator.next();
-                ByteArrayBuilder bytes = pje.getData();
-                jobData.append(bytes.getByteArray());
-            }
+            // Stream the elements to the printer one after another rather
+            // than concatenating the whole job in memory
+            InputStream jobData = getRawStream();
             
             try {
                 
                 printer.setJobTitle(title);
                 if(jobHost != null) {
+                    // Host jobs are written by the HostConnectionPool thread,
+                    // the job finishes once the pool reports back
                     RawPrinter rawPrinter = (RawPrinter)printer;
-                    rawPrinter.printToHost(jobData, jobHost, jobPort);
+                    rawPrinter.printToHost(jobData, jobHost, jobPort, new SendListener() {
+                        public void sent(long bytes) {
+                            finishSending();
+                        }
+                        
+                        public void failed(IOException ex) {
+                            failSending(ex);
+                        }
+                    });
+                    return;
+                }
+                else if(printer instanceof LPRPrinter) {
+                    // The LPR printer's thread sends it, along with any other
+                    // jobs queued for the same server
+                    ((LPRPrinter)printer).submit(jobData, getRawLength(), title, new SendListener() {
+                        public void sent(long bytes) {
+                            finishSending();
+                        }
+                        
+                        public void failed(IOException ex) {
+                            failSending(ex);
+                        }
+                    });
+                    return;
+                }
+                else if(printer instanceof IPPPrinter) {
+                    printerJobId = ((IPPPrinter)printer).submit(jobData);
+                }
+                else if(alternatePrint && printer instanceof RawPrinter) {
+                    // Queued for lp, which may send it along with other jobs
+                    // for the same printer
+                    ((RawPrinter)printer).printAlternate(jobData, new SendListener() {
+                        public void sent(long bytes) {
+                            finishSending();
+                        }
+                        
+                        public void failed(IOException ex) {
+                            failSending(ex);
+                        }
+                    });
+                    return;
                 }
                 else if(alternatePrint) {
                     printer.printAlternate(jobData);
@@ -333,6 +651,8 @@ public class PrintJob extends JLabel implements Runnable, Printable {
                 }
             } catch (PrintException ex) {
                 LogIt.log(Level.SEVERE, "Could not print raw job.", ex);
+                failSending(ex);
+                return;
             }
         }
         else if(type == PrintJobType.TYPE_HTML) {
@@ -459,9 +779,48 @@ public class PrintJob extends JLabel implements Runnable, Printable {
         else {
             LogIt.log(Level.WARNING, "Unsupported job type.");
         }
-            
-        state = PrintJobState.STATE_COMPLETE;
-
+        
+        finishSending();
+    }
+    
+    /**
+     * Mark the job complete once the printer has its data and release the
+     * data
+     */
+    private void finishSending() {
+        if(setJobState(PrintJobState.STATE_COMPLETE) == PrintJobState.STATE_CANCELLED) {
+            LogIt.log(Level.WARNING, "Print job was cancelled while sending.");
+        }
+        releaseData();
+    }
+    
+    /**
+     * Fail a job that stopped sending on an unexpected exception, so it
+     * reaches a terminal state and its data is released
+     * 
+     * @param ex The exception that stopped the job
+     */
+    void abort(Exception ex) {
+        if(!isFinished()) {
+            failSending(ex);
+        }
+    }
+    
+    /**
+     * Mark the job failed when the printer couldn't be sent its data, report
+     * the exception to the spooler and release the data
+     * 
+     * @param ex The exception that stopped the job
+     */
+    private void failSending(Exception ex) {
+        error = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+        if(spooler != null) {
+            spooler.setException(ex);
+        }
+        if(setJobState(PrintJobState.STATE_FAILED) == PrintJobState.STATE_CANCELLED) {
+            LogIt.log(Level.WARNING, "Print job was cancelled while sending.");
+        }
+        releaseData();
     }
     
     /**
@@ -588,4 +947,73 @@ public class PrintJob extends JLabel implements Runnable, Printable {
         this.alternatePrint = alternatePrint;
     }
     
+    /**
+     * Set the quantization method for raw images appended from now on
+     * 
+     * @param imageQuantization One of the <code>ImageWrapper</code> 
+     * quantization methods
+     */
+    void setImageQuantization(int imageQuantization) {
+        this.imageQuantization = imageQuantization;
+    }
+    
+    /**
+     * Turn compressed ZPL output on or off for raw images appended from now on
+     * 
+     * @param zplCompression The new value of zplCompression
+     */
+    void setZplCompression(boolean zplCompression) {
+        this.zplCompression = zplCompression;
+    }
+    
+    /**
+     * Set the cache raw images appended from now on use for their converted
+     * commands
+     * 
+     * @param imageCache The image cache
+     */
+    void setImageCache(ImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
+    
+    /**
+     * Fill this job from a file that is split into several jobs while it is
+     * being read. The spooler splits the file once the job is printed.
+     * 
+     * @param splitter The splitter for the file
+     */
+    void setSplitter(DocumentSplitter splitter) {
+        type = PrintJobType.TYPE_RAW;
+        this.splitter = splitter;
+    }
+    
+    /**
+     * Get the splitter this job is filled from, if any
+     * 
+     * @return The splitter, or null for a regular job
+     */
+    DocumentSplitter getSplitter() {
+        return splitter;
+    }
+    
+    /**
+     * Copy the printer and output settings of another job, so jobs split from
+     * one file are all sent the same way.
+     * 
+     * @param source The job to copy the settings of
+     */
+    void copySettings(PrintJob source) {
+        printer = source.printer;
+        jobHost = source.jobHost;
+        jobPort = source.jobPort;
+        paperSize = source.paperSize;
+        autoSize = source.autoSize;
+        logPSFeatures = source.logPSFeatures;
+        alternatePrint = source.alternatePrint;
+        imageQuantization = source.imageQuantization;
+        zplCompression = source.zplCompression;
+        imageCache = source.imageCache;
+        spooler = source.spooler;
+    }
+    
 }
\ No newline at end of file
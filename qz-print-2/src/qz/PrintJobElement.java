@@ -34,9 +34,7 @@ import static java.awt.print.Printable.PAGE_EXISTS;
 import java.awt.print.PrinterException;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.logging.Level;
@@ -63,6 +61,9 @@ public class PrintJobElement {
     private int imageX = 0;
     private int imageY = 0;
     private int dotDensity = 32;
+    private int imageQuantization = ImageWrapper.CHECK_LUMA;
+    private boolean zplCompression;
+    private ImageCache imageCache;
     private LanguageType lang;
     private String xmlTag;
     private BufferedImage bufferedImage;
@@ -135,38 +136,66 @@ public class PrintJobElement {
         if(type == PrintJobElementType.TYPE_IMAGE) {
             
             // Prepare the image
-            String file = new String(data.getByteArray(), charset.name());
+            byte[] uri = getUriBytes();
+            String header = ByteUtilities.getDataUriHeader(uri);
+            boolean base64 = header != null && ByteUtilities.isBase64Image(header);
+            String file = base64 ? null : new String(uri, charset.name());
+            
+            // A data URI is its own source, anything else is fetched first
+            // so the cache is keyed on the image content
+            byte[] source = base64 ? uri : ByteUtilities.readBinaryFile(file);
+            
+            String cacheKey = null;
+            if (imageCache != null) {
+                cacheKey = ImageCache.createKey(source, lang, charset.name(), dotDensity,
+                        imageX, imageY, imageQuantization, zplCompression);
+                byte[] command = imageCache.get(cacheKey);
+                if (command != null) {
+                    LogIt.log("Using cached image command for " + (base64 ? "base64 image" : file));
+                    this.data = new ByteArrayBuilder(command);
+                    prepared = true;
+                    return true;
+                }
+            }
             
             BufferedImage bi;
             ImageWrapper iw;
-            if (ByteUtilities.isBase64Image(file)) {
-                byte[] imageData = Base64.decode(file.split(",")[1]);
-                bi = ImageIO.read(new ByteArrayInputStream(imageData));
+            if (base64) {
+                bi = ImageIO.read(ByteUtilities.openBase64Data(uri, header));
             } else {
-                bi = ImageIO.read(new URL(file));
+                bi = ImageIO.read(new ByteArrayInputStream(source));
+            }
+            if (bi == null) {
+                throw new IOException("Could not read image " + (base64 ? "data" : file));
             }
-            iw = new ImageWrapper(bi, lang);
+            iw = new ImageWrapper(bi, lang, imageQuantization);
             iw.setCharset(charset);
             // Image density setting (ESCP only)
             iw.setDotDensity(dotDensity);
             // Image coordinates, (EPL only)
             iw.setxPos(imageX);
             iw.setyPos(imageY);
+            // Compressed graphic fields (ZPL only)
+            iw.setZplCompression(zplCompression);
             
             try {
-                this.data = new ByteArrayBuilder(iw.getImageCommand());
+                byte[] command = iw.getImageCommand();
+                if (imageCache != null) {
+                    imageCache.put(cacheKey, command);
+                }
+                this.data = new ByteArrayBuilder(command);
             } catch (UnsupportedEncodingException ex) {
                 LogIt.log(Level.SEVERE, "Unsupported encoding.", ex);
             }
         }
         else if(type == PrintJobElementType.TYPE_IMAGE_PS) {
-            String file = new String(data.getByteArray(), charset.name());
-            if (ByteUtilities.isBase64Image(file)) {
-                byte[] imgData = Base64.decode(file.split(",")[1]);
-                InputStream in = new ByteArrayInputStream(imgData);
-                bufferedImage = ImageIO.read(in);
+            byte[] uri = getUriBytes();
+            String header = ByteUtilities.getDataUriHeader(uri);
+            if (header != null && ByteUtilities.isBase64Image(header)) {
+                bufferedImage = ImageIO.read(ByteUtilities.openBase64Data(uri, header));
             } else {
-                bufferedImage = ImageIO.read(new URL(file));
+                String file = new String(uri, charset.name());
+                bufferedImage = ImageIO.read(new ByteArrayInputStream(ByteUtilities.readBinaryFile(file)));
             }
         }
         else if(type == PrintJobElementType.TYPE_XML) {
@@ -191,8 +220,15 @@ public class PrintJobElement {
             data = new ByteArrayBuilder(FileUtilities.readRawFile(file));
         }
         else if(type == PrintJobElementType.TYPE_PDF) {
-            String file = new String(data.getByteArray(), charset.name());
-            bufferedPDF = ByteBuffer.wrap(ByteUtilities.readBinaryFile(file));
+            byte[] uri = getUriBytes();
+            String header = ByteUtilities.getDataUriHeader(uri);
+            if (header != null && ByteUtilities.isBase64PDF(header)) {
+                // PDFFile needs random access, so the payload is decoded
+                // once into an array of exactly its size
+                bufferedPDF = ByteBuffer.wrap(ByteUtilities.decodeBase64Data(uri, header));
+            } else {
+                bufferedPDF = ByteUtilities.readBinaryBuffer(new String(uri, charset.name()));
+            }
             try {
                 pdfFile = getPDFFile();
             } catch (PrinterException ex) {
@@ -204,6 +240,65 @@ public class PrintJobElement {
         return true;
     }
     
+    /**
+     * Get the element's path or data URI as ASCII bytes. The appended bytes
+     * are used as is, unless the charset isn't ASCII compatible and they hold
+     * a data URI.
+     * 
+     * @return The bytes of the path or URI
+     * @throws UnsupportedEncodingException 
+     */
+    private byte[] getUriBytes() throws UnsupportedEncodingException {
+        byte[] uri = data.getByteArray();
+        if (ByteUtilities.getDataUriHeader(uri) == null) {
+            String file = new String(uri, charset.name());
+            if (file.startsWith("data:")) {
+                return file.getBytes("US-ASCII");
+            }
+        }
+        return uri;
+    }
+    
+    /**
+     * Set the method used to convert an image element to monochrome. Must be
+     * set before the element is prepared.
+     * 
+     * @param imageQuantization One of the <code>ImageWrapper</code> 
+     * quantization methods
+     */
+    void setImageQuantization(int imageQuantization) {
+        this.imageQuantization = imageQuantization;
+    }
+    
+    /**
+     * Turn compressed ZPL image output on or off
+     * 
+     * @param zplCompression The new value of zplCompression
+     */
+    void setZplCompression(boolean zplCompression) {
+        this.zplCompression = zplCompression;
+    }
+    
+    /**
+     * Set the cache converted image commands are looked up in and added to
+     * 
+     * @param imageCache The cache, or null to always convert the image
+     */
+    void setImageCache(ImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
+    
+    /**
+     * Release the element's data and rendered content once the job no longer
+     * needs it.
+     */
+    void release() {
+        data = null;
+        bufferedImage = null;
+        pdfFile = null;
+        bufferedPDF = null;
+    }
+    
     /**
      * Check if the PrintJobElement has been prepared
      * 
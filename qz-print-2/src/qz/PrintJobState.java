@@ -34,5 +34,6 @@ public enum PrintJobState {
     STATE_QUEUED,
     STATE_SENDING,
     STATE_COMPLETE,
+    STATE_FAILED,
     STATE_CANCELLED
 }
@@ -0,0 +1,101 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+/**
+ * A lightweight record of a PrintJob that has been evicted from the spool.
+ * Only the fields reported through the queue info are kept, so the job's
+ * data can be garbage collected.
+ */
+public class PrintJobSummary {
+    
+    private final int id;
+    private final String title;
+    private final PrintJobState state;
+    private final long finishedTime;
+    private final int printerJobId;
+    private final String error;
+    
+    PrintJobSummary(PrintJob job) {
+        this.id = job.getId();
+        this.title = job.getTitle();
+        this.state = job.getJobState();
+        this.finishedTime = job.getFinishedTime();
+        this.printerJobId = job.getPrinterJobId();
+        this.error = job.getError();
+    }
+    
+    /**
+     * Get the id the job was given by the spooler.
+     * 
+     * @return The job id
+     */
+    public int getId() {
+        return id;
+    }
+    
+    /**
+     * Get the job's title.
+     * 
+     * @return The job title
+     */
+    public String getTitle() {
+        return title;
+    }
+    
+    /**
+     * Get the state the job was in when it was evicted.
+     * 
+     * @return The final PrintJobState
+     */
+    public PrintJobState getJobState() {
+        return state;
+    }
+    
+    /**
+     * Get the time the job completed, failed or was cancelled.
+     * 
+     * @return The time in milliseconds
+     */
+    public long getFinishedTime() {
+        return finishedTime;
+    }
+    
+    /**
+     * Get the id the printer's spooler gave the job.
+     * 
+     * @return The printer's job id, or 0 if it didn't give one
+     */
+    public int getPrinterJobId() {
+        return printerJobId;
+    }
+    
+    /**
+     * Get the reason the job failed.
+     * 
+     * @return The error message, or null if the job didn't fail
+     */
+    public String getError() {
+        return error;
+    }
+    
+}
@@ -32,7 +32,14 @@ import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.ListIterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.logging.Level;
 import javax.print.DocFlavor;
 import javax.print.PrintService;
@@ -44,6 +51,7 @@ import qz.exception.InvalidRawImageException;
 import qz.exception.NullCommandException;
 import qz.exception.NullPrintServiceException;
 import qz.json.JSONArray;
+import qz.json.JSONObject;
 import qz.reflection.ReflectException;
 
 /**
@@ -55,11 +63,30 @@ import qz.reflection.ReflectException;
  */
 public class PrintSpooler implements Runnable {
     
-    private boolean running;
+    private static final long READY_CHECK_INTERVAL = 500;
+    private static final int JOB_HISTORY_LIMIT = 100;
+    private static final int SPLIT_JOB_LIMIT = 8;
+    
+    private volatile boolean running;
+    private boolean spoolChanged;
+    private boolean heldJobs;
+    private long nextExpiry;
+    private int nextJobId;
+    private int maxRetainedJobs = 100;
+    private int jobRetentionTime = 0;
+    private final LinkedList<PrintJobSummary> jobHistory = new LinkedList<PrintJobSummary>();
     private PrintJob currentJob;
-    private Thread currentJobThread;
     private JSONArray queueInfo;
     private final ArrayList<PrintJob> spool = new ArrayList<PrintJob>();
+    private final HashMap<String, ExecutorService> lanes = new HashMap<String, ExecutorService>();
+    private ExecutorService prepareExecutor;
+    private ExecutorService elementExecutor;
+    private ExecutorService splitExecutor;
+    private int preparationThreads = 2;
+    private int rawPrintTimeout = RawPrinter.DEFAULT_PRINT_TIMEOUT;
+    private boolean ippPrint;
+    private String ippServer = IPPPrinter.DEFAULT_SERVER;
+    private final HashMap<String, LPRPrinter> lprPrinters = new HashMap<String, LPRPrinter>();
     private ListIterator<PrintJob> spoolIterator;
     private Printer currentPrinter;
     private String lastPrinterName;
@@ -72,19 +99,22 @@ public class PrintSpooler implements Runnable {
     private boolean logPSFeatures;
     private String endOfDocument;
     private int docsPerSpool;
-    private int openJobs;
+    private final ArrayList<PrintJob> openJobs = new ArrayList<PrintJob>();
     private NetworkUtilities networkUtilities;
     private String macAddress;
     private String ipAddress;
     private boolean alternatePrint;
+    private int imageQuantization = ImageWrapper.CHECK_LUMA;
+    private boolean zplCompression;
+    private final ImageCache imageCache = new ImageCache();
     private Applet applet;
     private Throwable exception;
     private PrintService defaultPS;
     private boolean serialEnabled = false;
             
     /**
-     * The run loop will consistently check the spool List and call functions
-     * based on the state of each PrintJob
+     * The run loop parks on the spool until a PrintJob changes state, then
+     * queues processed jobs and hands queued jobs to their printers.
      */
     public void run() {
         
@@ -101,7 +131,7 @@ public class PrintSpooler implements Runnable {
         logPSFeatures = false;
         endOfDocument = "";
         docsPerSpool = 0;
-        openJobs = 0;
+        openJobs.clear();
         alternatePrint = false;
         exception = null;
         currentPrinter = null;
@@ -109,37 +139,290 @@ public class PrintSpooler implements Runnable {
         
         // Main loop
         while(running) {
+            ArrayList<PrintJob> readyJobs = new ArrayList<PrintJob>();
+            
             synchronized(spool) {
-                if(spool.size() > 0) {
-                    spoolIterator = spool.listIterator();
-                    JSONArray currentQueueInfo = new JSONArray();
-                    while(spoolIterator.hasNext()) {
-
-                        int jobIndex = spoolIterator.nextIndex();
-                        PrintJob job = spoolIterator.next();
-                        PrintJobState jobState = job.getJobState();
-
-                        switch(jobState) {
-                            case STATE_PROCESSED:
-                                job.queue();
-                                break;
-                            case STATE_QUEUED:
-                                // Get Printer Status from the job
-                                if(job.getPrinter().ready()) {
-                                    job.print();
-                                }
+                try {
+                    // Sleep until a job changes state. If a job is being held
+                    // back by a busy printer, wake up periodically to recheck.
+                    while(running && !spoolChanged) {
+                        long timeout = heldJobs ? READY_CHECK_INTERVAL : 0;
+                        if(nextExpiry > 0) {
+                            long untilExpiry = Math.max(1, nextExpiry - System.currentTimeMillis());
+                            timeout = timeout > 0 ? Math.min(timeout, untilExpiry) : untilExpiry;
+                        }
+                        if(timeout > 0) {
+                            spool.wait(timeout);
+                            break;
+                        }
+                        spool.wait();
+                    }
+                } catch (InterruptedException ex) {
+                    LogIt.log(Level.WARNING, "PrintSpooler was interrupted.", ex);
+                    running = false;
+                }
+                spoolChanged = false;
+                heldJobs = false;
+                
+                evictJobs();
+                
+                // Destinations with a job still waiting on the printer. Later
+                // jobs for the same destination must wait behind it.
+                HashSet<String> blockedLanes = new HashSet<String>();
+                
+                JSONArray currentQueueInfo = new JSONArray();
+                for(PrintJobSummary summary : jobHistory) {
+                    currentQueueInfo.put(getJobInfoMap(summary.getId(), summary.getTitle(), summary.getJobState(), summary.getPrinterJobId(), summary.getError()));
+                }
+                
+                spoolIterator = spool.listIterator();
+                while(spoolIterator.hasNext()) {
+
+                    PrintJob job = spoolIterator.next();
+
+                    switch(job.getJobState()) {
+                        case STATE_CREATED:
+                        case STATE_PROCESSING:
+                            // A job that has been submitted but not prepared
+                            // yet keeps its place in its printer's lane
+                            if(job.getPrinter() != null) {
+                                blockedLanes.add(job.getDestination());
+                            }
+                            break;
+                        case STATE_PROCESSED:
+                            job.queue();
+                            // Fall through, the job may be sent right away
+                        case STATE_QUEUED:
+                            String destination = job.getDestination();
+                            if(job.isDispatched() || blockedLanes.contains(destination)) {
                                 break;
-                        };
+                            }
+                            // Held while the printer reports it can't take
+                            // jobs, rechecked every READY_CHECK_INTERVAL
+                            if(job.isPrinterReady()) {
+                                readyJobs.add(job);
+                            }
+                            else {
+                                blockedLanes.add(destination);
+                                heldJobs = true;
+                            }
+                            break;
+                    };
 
-                        HashMap<String, String> jobInfo = new HashMap<String, String>();
-                        jobInfo.put("id", String.valueOf(jobIndex));
-                        jobInfo.put("title", job.getTitle());
-                        jobInfo.put("state", jobState.name());
-                        currentQueueInfo.put(jobInfo);
-                    }
-                    queueInfo = currentQueueInfo;
+                    currentQueueInfo.put(getJobInfoMap(job.getId(), job.getTitle(), job.getJobState(), job.getPrinterJobId(), job.getError()));
+                }
+                queueInfo = currentQueueInfo;
+            }
+            
+            // Hand each job to its printer's lane. Lanes send in parallel with
+            // each other but in order within a printer.
+            for(PrintJob job : readyJobs) {
+                if(job.dispatch()) {
+                    getLane(job.getDestination()).execute(new DispatchTask(job));
+                }
+            }
+        }
+        
+        LogIt.log("PrintSpooler stopped");
+    }
+    
+    /**
+     * Apply the retention policy to finished jobs. Jobs beyond the newest
+     * <code>maxRetainedJobs</code> finished jobs, or finished longer than
+     * <code>jobRetentionTime</code> seconds ago, are removed from the spool
+     * and only a PrintJobSummary is kept. Must be called while holding the
+     * spool lock.
+     */
+    private void evictJobs() {
+        long now = System.currentTimeMillis();
+        long retentionMillis = jobRetentionTime * 1000L;
+        nextExpiry = 0;
+        
+        int finishedJobs = 0;
+        for(PrintJob job : spool) {
+            if(job.isFinished()) {
+                finishedJobs++;
+            }
+        }
+        
+        Iterator<PrintJob> iterator = spool.iterator();
+        while(iterator.hasNext()) {
+            PrintJob job = iterator.next();
+            if(!job.isFinished()) {
+                continue;
+            }
+            long expiry = job.getFinishedTime() + retentionMillis;
+            boolean overLimit = maxRetainedJobs >= 0 && finishedJobs > maxRetainedJobs;
+            boolean expired = retentionMillis > 0 && expiry <= now;
+            if(overLimit || expired) {
+                iterator.remove();
+                finishedJobs--;
+                jobHistory.add(new PrintJobSummary(job));
+                if(jobHistory.size() > JOB_HISTORY_LIMIT) {
+                    jobHistory.removeFirst();
                 }
             }
+            else if(retentionMillis > 0 && (nextExpiry == 0 || expiry < nextExpiry)) {
+                nextExpiry = expiry;
+            }
+        }
+    }
+    
+    /**
+     * Build the queue info entry for a single job.
+     * 
+     * @param id The job id
+     * @param title The job title
+     * @param state The job's state
+     * @param printerJobId The id the printer's spooler gave the job, or 0
+     * @param error The reason the job failed, or null
+     * @return A map of the job's info
+     */
+    private HashMap<String, String> getJobInfoMap(int id, String title, PrintJobState state, int printerJobId, String error) {
+        HashMap<String, String> jobInfo = new HashMap<String, String>();
+        jobInfo.put("id", String.valueOf(id));
+        jobInfo.put("title", title);
+        jobInfo.put("state", state.name());
+        if(printerJobId > 0) {
+            jobInfo.put("printerJobId", String.valueOf(printerJobId));
+        }
+        if(error != null) {
+            jobInfo.put("error", error);
+        }
+        return jobInfo;
+    }
+    
+    /**
+     * Find a job in the spool by id. Must be called while holding the spool
+     * lock.
+     * 
+     * @param jobId The job id
+     * @return The PrintJob, or null if it is no longer in the spool
+     */
+    private PrintJob findJob(int jobId) {
+        for(PrintJob job : spool) {
+            if(job.getId() == jobId) {
+                return job;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Set the number of finished jobs to keep in the spool. Older finished
+     * jobs are reduced to a summary. A negative value keeps all jobs.
+     * 
+     * @param maxRetainedJobs The number of finished jobs to keep
+     */
+    public void setMaxRetainedJobs(int maxRetainedJobs) {
+        synchronized(spool) {
+            this.maxRetainedJobs = maxRetainedJobs;
+            spoolChanged = true;
+            spool.notifyAll();
+        }
+        LogIt.log("Maximum retained jobs set to " + maxRetainedJobs);
+    }
+    
+    /**
+     * Set how long finished jobs are kept in the spool before being reduced
+     * to a summary. A value of 0 disables time based eviction.
+     * 
+     * @param seconds The retention time in seconds
+     */
+    public void setJobRetentionTime(int seconds) {
+        synchronized(spool) {
+            this.jobRetentionTime = seconds;
+            spoolChanged = true;
+            spool.notifyAll();
+        }
+        LogIt.log("Job retention time set to " + seconds + " seconds");
+    }
+    
+    /**
+     * Called by a PrintJob whenever its state changes. This wakes the run
+     * loop so the change can be acted on immediately.
+     * 
+     * @param job The PrintJob that changed
+     */
+    void jobStateChanged(PrintJob job) {
+        synchronized(spool) {
+            spoolChanged = true;
+            spool.notifyAll();
+        }
+    }
+    
+    /**
+     * Stop the run loop. Jobs that have not been sent remain in the spool.
+     */
+    public void stop() {
+        synchronized(spool) {
+            running = false;
+            spool.notifyAll();
+        }
+        synchronized(lanes) {
+            for(ExecutorService lane : lanes.values()) {
+                lane.shutdown();
+            }
+            lanes.clear();
+            if(prepareExecutor != null) {
+                prepareExecutor.shutdown();
+                prepareExecutor = null;
+            }
+            if(elementExecutor != null) {
+                elementExecutor.shutdown();
+                elementExecutor = null;
+            }
+            if(splitExecutor != null) {
+                splitExecutor.shutdown();
+                splitExecutor = null;
+            }
+        }
+    }
+    
+    /**
+     * Get the dispatch lane for a destination, creating it if needed. Each
+     * lane has a single worker, so jobs to one printer are sent in FIFO order
+     * while other printers are serviced in parallel.
+     * 
+     * @param destination The destination key of the job
+     * @return The lane's executor
+     */
+    private ExecutorService getLane(final String destination) {
+        synchronized(lanes) {
+            ExecutorService lane = lanes.get(destination);
+            if(lane == null) {
+                lane = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "qz-lane-" + destination);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                lanes.put(destination, lane);
+                LogIt.log("Created dispatch lane for \"" + destination + "\"");
+            }
+            return lane;
+        }
+    }
+    
+    /**
+     * Sends a single PrintJob from within its dispatch lane.
+     */
+    private static class DispatchTask implements Runnable {
+        
+        private final PrintJob job;
+        
+        DispatchTask(PrintJob job) {
+            this.job = job;
+        }
+        
+        public void run() {
+            try {
+                job.print();
+            } catch (RuntimeException ex) {
+                LogIt.log(Level.SEVERE, "Could not send print job.", ex);
+                job.abort(ex);
+            }
         }
     }
     
@@ -177,11 +460,8 @@ public class PrintSpooler implements Runnable {
      */
     public void createJob() {
         
-        openJobs += 1;
-        
         currentJob = new PrintJob();
-        currentJobThread = new Thread(currentJob);
-        currentJobThread.start();
+        openJobs.add(currentJob);
         
         if(paperSize != null) {
             currentJob.setPaperSize(paperSize);
@@ -192,12 +472,38 @@ public class PrintSpooler implements Runnable {
         
         currentJob.setLogPostScriptFeatures(logPSFeatures);
         currentJob.setAlternatePrinting(alternatePrint);
+        currentJob.setImageQuantization(imageQuantization);
+        currentJob.setZplCompression(zplCompression);
+        currentJob.setImageCache(imageCache);
+        currentJob.setSpooler(this);
         
         synchronized(spool) {
+            currentJob.setId(nextJobId++);
             spool.add(currentJob);
+            jobStateChanged(currentJob);
         }
     }
     
+    /**
+     * Create the job for the next group of documents split from a file and
+     * add it to the spool right after the job before it, so it keeps its
+     * place in its printer's lane.
+     * 
+     * @param previous The job holding the previous group
+     * @return The new PrintJob
+     */
+    private PrintJob createSplitJob(PrintJob previous) {
+        PrintJob job = new PrintJob();
+        job.copySettings(previous);
+        
+        synchronized(spool) {
+            job.setId(nextJobId++);
+            spool.add(spool.indexOf(previous) + 1, job);
+            jobStateChanged(job);
+        }
+        return job;
+    }
+    
     /**
      * Append raw data to a PrintJob
      * 
@@ -286,49 +592,17 @@ public class PrintSpooler implements Runnable {
         
         if(!"".equals(endOfDocument)) {
             
-            String[] fileData = getFileData(url, charset).split(endOfDocument);
-            String[] consolidatedData;
-            
-            if(docsPerSpool > 1) {
-                
-                int dataLength = fileData.length;
-                int newArrayLength = ((dataLength - (dataLength % docsPerSpool)) / docsPerSpool) + 1;
-
-                consolidatedData = new String[newArrayLength];
-                
-                for(int i=0; i < newArrayLength; i++) {
-                    String jobData = "";
-                    for(int j=0; j < docsPerSpool; j++) {
-                        int index = (i * docsPerSpool) + j;
-                        if(index < dataLength) {
-                            jobData += fileData[index] + endOfDocument;
-                        }
-                    }
-                    consolidatedData[i] = jobData;
-                }
-                
-            }
-            else {
-                consolidatedData = new String[fileData.length];
-                
-                for(int i=0; i < fileData.length; i++) {
-                    consolidatedData[i] = fileData[i] + endOfDocument;
-                }
+            // The file is split into one job per group of documents when the
+            // job is printed, while it is being read
+            try {
+                String file = new String(url.getByteArray(), charset.name());
+                byte[] marker = new ByteArrayBuilder().append(endOfDocument, charset).getByteArray();
                 
-            }
-            
-            for(String dataString : consolidatedData) {
-                if(currentJob == null) {
-                    createJob();
-                }
-                ByteArrayBuilder bytes = new ByteArrayBuilder();
-                try {
-                    bytes.append(dataString, charset);
-                } catch (UnsupportedEncodingException ex) {
-                    LogIt.log(Level.SEVERE, "Unsupported encoding.", ex);
-                }
-                currentJob.append(bytes, charset);
+                createJob();
+                currentJob.setSplitter(new DocumentSplitter(file, marker, charset, docsPerSpool));
                 currentJob = null;
+            } catch (UnsupportedEncodingException ex) {
+                LogIt.log(Level.SEVERE, "Unsupported encoding.", ex);
             }
             
             endOfDocument = "";
@@ -384,47 +658,21 @@ public class PrintSpooler implements Runnable {
         }
         lastPrinterName = currentPrinter.getName();
         
-        if(openJobs == 0) {
+        if(openJobs.isEmpty()) {
             LogIt.log(Level.WARNING, "No data has been provided.");
             setException(new NullCommandException("No data has been provided."));
             return false;
         }
-        else if(openJobs == 1) {
-            currentJob.setPrinter(currentPrinter);
-            try {
-                currentJob.prepareJob();
-            }
-            catch (InvalidRawImageException ex) {
-                LogIt.log(Level.SEVERE, "Raw image error.", ex);
-                setException(ex);
-            }
-            catch (NullCommandException ex) {
-                LogIt.log(Level.SEVERE, "No data has been provided.", ex);
-                setException(ex);
-            }
-            currentJob = null;
-            openJobs = 0;
-            return true;
-        }
         else {
-            synchronized(spool) {
-                while(openJobs > 0) {
-                    PrintJob job = spool.get(spool.size() - openJobs);
+            for(PrintJob job : openJobs) {
+                // A job cancelled before it was printed may already be gone
+                // from the spool
+                if(!job.isFinished()) {
                     job.setPrinter(currentPrinter);
-                    try {
-                        job.prepareJob();
-                    }
-                    catch (InvalidRawImageException ex) {
-                        LogIt.log(Level.SEVERE, "Raw image error.", ex);
-                        setException(ex);
-                    }
-                    catch (NullCommandException ex) {
-                        LogIt.log(Level.SEVERE, "No data has been provided.", ex);
-                        setException(ex);
-                    }
-                    openJobs -= 1;
+                    prepareJob(job);
                 }
             }
+            openJobs.clear();
             currentJob = null;
             return true;
         }
@@ -439,20 +687,17 @@ public class PrintSpooler implements Runnable {
         if(currentJob != null) {
             lastPrinterName = "File";
             try {
-                filePrinter.setOutputPath(filePath);
-                currentJob.setPrinter(filePrinter);
-                currentJob.prepareJob();
-            } catch (InvalidRawImageException ex) {
-                LogIt.log(Level.SEVERE, "Raw image error.", ex);
-                setException(ex);
-            } catch (NullCommandException ex) {
-                LogIt.log(Level.SEVERE, "No data has been provided.", ex);
-                setException(ex);
+                // Each job gets its own FilePrinter so queued jobs keep their path
+                FilePrinter jobFilePrinter = new FilePrinter();
+                jobFilePrinter.setOutputPath(filePath);
+                currentJob.setPrinter(jobFilePrinter);
+                prepareJob(currentJob);
             } catch (InvalidFileTypeException ex) {
                 LogIt.log(Level.SEVERE, "Invalid file type.", ex);
                 setException(ex);
             }
             currentJob = null;
+            openJobs.clear();
         }
         else {
             LogIt.log(Level.SEVERE, "No data has been provided.");
@@ -470,32 +715,333 @@ public class PrintSpooler implements Runnable {
         if(currentJob != null) {
             lastPrinterName = "Remote Host";
             currentJob.setHostOutput(jobHost, jobPort);
+            prepareJob(currentJob);
+            currentJob = null;
+            openJobs.clear();
+        }
+        else {
+            LogIt.log(Level.SEVERE, "No data has been provided.");
+            setException(new NullCommandException("No data has been provided."));
+        }
+    }
+    
+    /**
+     * printToLPR will set an LPD queue as the printer and prepare the current
+     * job
+     * 
+     * @param jobHost The LPD server
+     * @param jobPort The LPD port, usually 515
+     * @param queue The queue name on the server
+     */
+    public void printToLPR(String jobHost, int jobPort, String queue) {
+        if(currentJob != null) {
+            // Jobs for the same queue share a printer so they can be sent
+            // over one connection
+            String key = queue + "@" + jobHost + ":" + jobPort;
+            LPRPrinter printer;
+            synchronized(lprPrinters) {
+                printer = lprPrinters.get(key);
+                if(printer == null) {
+                    printer = new LPRPrinter(jobHost, jobPort, queue);
+                    lprPrinters.put(key, printer);
+                }
+            }
+            lastPrinterName = "LPR " + key;
+            currentJob.setPrinter(printer);
+            prepareJob(currentJob);
+            currentJob = null;
+            openJobs.clear();
+        }
+        else {
+            LogIt.log(Level.SEVERE, "No data has been provided.");
+            setException(new NullCommandException("No data has been provided."));
+        }
+    }
+    
+    /**
+     * Submit a job to the preparation pool. The job is queued by the run loop
+     * once it has been processed. A job split from a file is prepared on its
+     * own thread instead, as it stays busy until the printer has worked 
+     * through the file.
+     * 
+     * @param job The job to prepare
+     */
+    private void prepareJob(PrintJob job) {
+        if(job.getSplitter() != null) {
+            getSplitExecutor().execute(new PrepareTask(job));
+        }
+        else {
+            getPrepareExecutor().execute(new PrepareTask(job));
+        }
+    }
+    
+    /**
+     * Get the shared pool that prepares jobs, creating it if needed.
+     * 
+     * @return The preparation executor
+     */
+    private ExecutorService getPrepareExecutor() {
+        synchronized(lanes) {
+            if(prepareExecutor == null) {
+                prepareExecutor = Executors.newFixedThreadPool(preparationThreads, new ThreadFactory() {
+                    private int count = 0;
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "qz-prepare-" + (count++));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            return prepareExecutor;
+        }
+    }
+    
+    /**
+     * Get the pool that prepares the elements within a job, creating it if
+     * needed. This is kept apart from the job pool so a job waiting on its
+     * elements never starves them of threads.
+     * 
+     * @return The element preparation executor
+     */
+    private ExecutorService getElementExecutor() {
+        synchronized(lanes) {
+            if(elementExecutor == null) {
+                int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+                elementExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                    private int count = 0;
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "qz-element-" + (count++));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            return elementExecutor;
+        }
+    }
+    
+    /**
+     * Get the pool that splits files into jobs, creating it if needed. Each
+     * file gets a thread of its own, so files waiting on their printers never
+     * hold up preparing jobs for other printers.
+     * 
+     * @return The split executor
+     */
+    private ExecutorService getSplitExecutor() {
+        synchronized(lanes) {
+            if(splitExecutor == null) {
+                splitExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                    private int count = 0;
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "qz-split-" + (count++));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            return splitExecutor;
+        }
+    }
+    
+    /**
+     * Set how long raw printers wait for the print service to confirm a job
+     * before the next job is sent
+     * 
+     * @param rawPrintTimeout The timeout in milliseconds, 0 to wait
+     * indefinitely
+     */
+    public void setRawPrintTimeout(int rawPrintTimeout) {
+        this.rawPrintTimeout = rawPrintTimeout;
+        for(Printer printer : printerList) {
+            if(printer instanceof RawPrinter) {
+                ((RawPrinter)printer).setPrintTimeout(rawPrintTimeout);
+            }
+        }
+        LogIt.log("Raw print timeout set to " + rawPrintTimeout + " ms");
+    }
+    
+    /**
+     * Set the number of threads used to prepare jobs. Job preparation reads
+     * files and converts images, so this bounds how many jobs do that work at
+     * once.
+     * 
+     * @param preparationThreads The number of preparation threads
+     */
+    public void setPreparationThreads(int preparationThreads) {
+        if(preparationThreads < 1) {
+            LogIt.log(Level.WARNING, "Preparation threads must be at least 1.");
+            return;
+        }
+        synchronized(lanes) {
+            if(prepareExecutor instanceof ThreadPoolExecutor) {
+                ThreadPoolExecutor pool = (ThreadPoolExecutor)prepareExecutor;
+                if(preparationThreads > pool.getMaximumPoolSize()) {
+                    pool.setMaximumPoolSize(preparationThreads);
+                    pool.setCorePoolSize(preparationThreads);
+                }
+                else {
+                    pool.setCorePoolSize(preparationThreads);
+                    pool.setMaximumPoolSize(preparationThreads);
+                }
+            }
+            this.preparationThreads = preparationThreads;
+        }
+        LogIt.log("Preparation threads set to " + preparationThreads);
+    }
+    
+    /**
+     * Prepares a single PrintJob on the preparation pool. A job that can't be
+     * prepared is cancelled so it doesn't hold up its printer's lane.
+     */
+    private class PrepareTask implements Runnable {
+        
+        private final PrintJob job;
+        
+        PrepareTask(PrintJob job) {
+            this.job = job;
+        }
+        
+        public void run() {
+            if(job.getSplitter() != null) {
+                splitJob(job);
+                return;
+            }
             try {
-                currentJob.prepareJob();
-            } catch (InvalidRawImageException ex) {
+                job.prepareJob(getElementExecutor());
+                return;
+            }
+            catch (InvalidRawImageException ex) {
                 LogIt.log(Level.SEVERE, "Raw image error.", ex);
                 setException(ex);
-            } catch (NullCommandException ex) {
+            }
+            catch (NullCommandException ex) {
                 LogIt.log(Level.SEVERE, "No data has been provided.", ex);
                 setException(ex);
             }
-            currentJob = null;
+            catch (RuntimeException ex) {
+                LogIt.log(Level.SEVERE, "Could not prepare job.", ex);
+                setException(ex);
+            }
+            job.cancel();
         }
-        else {
-            LogIt.log(Level.SEVERE, "No data has been provided.");
-            setException(new NullCommandException("No data has been provided."));
+    }
+    
+    /**
+     * Fill a job from its file one group of documents at a time. Each group
+     * is queued as its own job as soon as it has been read, so printing starts
+     * while the rest of the file is still being split. At most 
+     * <code>SPLIT_JOB_LIMIT</code> groups are held in unfinished jobs, which
+     * bounds the memory used by large files. Runs on the split pool, as it
+     * waits for the printer to finish jobs before reading more.
+     * 
+     * @param job The job holding the splitter, which takes the first group
+     */
+    private void splitJob(PrintJob job) {
+        DocumentSplitter splitter = job.getSplitter();
+        LinkedList<PrintJob> pending = new LinkedList<PrintJob>();
+        PrintJob nextJob = null;
+        
+        try {
+            splitter.open();
+            ByteArrayBuilder group = splitter.next();
+            if(group == null) {
+                throw new NullCommandException("No documents were found in " + splitter.getUrl());
+            }
+            
+            while(job != null) {
+                if(!running || job.isFinished()) {
+                    LogIt.log(Level.WARNING, "Stopped splitting " + splitter.getUrl() + " after " + (splitter.getGroupCount() - 1) + " jobs");
+                    job.cancel();
+                    return;
+                }
+                
+                job.append(group, splitter.getCharset());
+                
+                group = splitter.next();
+                nextJob = group != null ? createSplitJob(job) : null;
+                
+                job.prepareJob(null);
+                pending.add(job);
+                job = nextJob;
+                nextJob = null;
+                
+                synchronized(spool) {
+                    while(running && countUnfinished(pending) >= SPLIT_JOB_LIMIT) {
+                        spool.wait(READY_CHECK_INTERVAL);
+                    }
+                }
+            }
+            
+            LogIt.log("Split " + splitter.getUrl() + " into " + splitter.getGroupCount() + " jobs");
+            return;
+        }
+        catch (IOException ex) {
+            LogIt.log(Level.SEVERE, "Could not retrieve file data.", ex);
+            setException(ex);
+        }
+        catch (InvalidRawImageException ex) {
+            LogIt.log(Level.SEVERE, "Raw image error.", ex);
+            setException(ex);
+        }
+        catch (NullCommandException ex) {
+            LogIt.log(Level.SEVERE, "No data has been provided.", ex);
+            setException(ex);
+        }
+        catch (InterruptedException ex) {
+            LogIt.log(Level.WARNING, "Splitting was interrupted.", ex);
+            Thread.currentThread().interrupt();
+        }
+        catch (RuntimeException ex) {
+            LogIt.log(Level.SEVERE, "Could not prepare job.", ex);
+            setException(ex);
+        }
+        finally {
+            splitter.close();
+        }
+        
+        if(job != null) {
+            job.cancel();
+        }
+        if(nextJob != null) {
+            nextJob.cancel();
         }
     }
     
+    /**
+     * Count the jobs that haven't finished yet, dropping finished ones from
+     * the list.
+     * 
+     * @param jobs The jobs to check
+     * @return The number of unfinished jobs
+     */
+    private int countUnfinished(LinkedList<PrintJob> jobs) {
+        Iterator<PrintJob> iterator = jobs.iterator();
+        while(iterator.hasNext()) {
+            if(iterator.next().isFinished()) {
+                iterator.remove();
+            }
+        }
+        return jobs.size();
+    }
+    
     /**
      * Cancel a job
-     * @param jobIndex The index of the job to cancel
+     * @param jobId The id of the job to cancel
      */
-    public void cancelJob(int jobIndex) {
+    public void cancelJob(int jobId) {
         synchronized(spool) {
-            PrintJob job = spool.get(jobIndex);
-            job.cancel();
-            spool.set(jobIndex, job);
+            PrintJob job = findJob(jobId);
+            if(job != null) {
+                job.cancel();
+                // Data appended after this goes to a new job
+                openJobs.remove(job);
+                if(job == currentJob) {
+                    currentJob = null;
+                }
+            }
+            else {
+                LogIt.log(Level.WARNING, "Job " + jobId + " is no longer in the spool.");
+            }
         }
     }
     
@@ -510,13 +1056,20 @@ public class PrintSpooler implements Runnable {
     
     /**
      * Returns a string with the contents of the job data. This is only really
-     * useful for Raw data PrintJobs
+     * useful for Raw data PrintJobs. Finished jobs have released their data.
      * 
-     * @param jobIndex The index of the job to get info for
+     * @param jobId The id of the job to get info for
      * @return A String representation of the job data
      */
-    public String getJobInfo(int jobIndex) {
-        PrintJob job = spool.get(jobIndex);
+    public String getJobInfo(int jobId) {
+        PrintJob job;
+        synchronized(spool) {
+            job = findJob(jobId);
+        }
+        if(job == null) {
+            LogIt.log(Level.WARNING, "Job " + jobId + " is no longer in the spool.");
+            return "";
+        }
         String jobInfo = job.getInfo();
         LogIt.log("Job Data: " + jobInfo);
         return jobInfo;
@@ -546,7 +1099,7 @@ public class PrintSpooler implements Runnable {
                 printer = (PSPrinter)new PSPrinter();
             }
             else {
-                printer = (RawPrinter)new RawPrinter();
+                printer = createRawPrinter();
             }
             
             printer.setPrintService(ps);
@@ -556,6 +1109,101 @@ public class PrintSpooler implements Runnable {
         
     }
     
+    /**
+     * Create the printer used for a raw print service, an IPPPrinter if IPP
+     * printing is on
+     * 
+     * @return A new RawPrinter or IPPPrinter
+     */
+    private Printer createRawPrinter() {
+        if(ippPrint) {
+            IPPPrinter printer = new IPPPrinter();
+            printer.setServer(ippServer);
+            return printer;
+        }
+        RawPrinter printer = new RawPrinter();
+        printer.setPrintTimeout(rawPrintTimeout);
+        return printer;
+    }
+    
+    /**
+     * Turn IPP printing on or off. Raw printers found so far are replaced, so
+     * the change applies to the next job.
+     * 
+     * @param ippPrint true to send raw jobs straight to CUPS over IPP
+     */
+    public void useIPPPrinting(boolean ippPrint) {
+        this.ippPrint = ippPrint;
+        
+        ListIterator<Printer> iterator = printerList.listIterator();
+        while(iterator.hasNext()) {
+            Printer printer = iterator.next();
+            if(printer instanceof RawPrinter || printer instanceof IPPPrinter) {
+                Printer replacement = createRawPrinter();
+                replacement.setPrintService(printer.getPrintService());
+                replacement.setName(printer.getName());
+                iterator.set(replacement);
+                if(currentPrinter == printer) {
+                    currentPrinter = replacement;
+                }
+            }
+        }
+        
+        LogIt.log("IPP printing set to " + ippPrint);
+    }
+    
+    /**
+     * Get the last known status of the current printer.
+     * 
+     * @return The printer's status, UNKNOWN for printers that don't report one
+     */
+    public PrinterStatus getPrinterStatus() {
+        Printer printer = currentPrinter;
+        if(printer instanceof IPPPrinter) {
+            return ((IPPPrinter)printer).getStatus();
+        }
+        if((printer instanceof RawPrinter || printer instanceof PSPrinter) && printer.getPrintService() != null) {
+            return StatusMonitor.getDefault().getServiceStatus(printer.getPrintService());
+        }
+        return new PrinterStatus(PrinterStatus.State.UNKNOWN, "Printer doesn't report status");
+    }
+    
+    /**
+     * Set the address of the CUPS scheduler used by IPP printing
+     * 
+     * @param ippServer The scheduler's URL, such as http://localhost:631
+     */
+    public void setIPPServer(String ippServer) {
+        this.ippServer = ippServer;
+        for(Printer printer : printerList) {
+            if(printer instanceof IPPPrinter) {
+                ((IPPPrinter)printer).setServer(ippServer);
+            }
+        }
+        LogIt.log("IPP server set to " + ippServer);
+    }
+    
+    /**
+     * Get the state of a job as last reported by its printer. The state is
+     * queried in the background, so poll this to follow it. Only IPP 
+     * printers report the state of their jobs.
+     * 
+     * @param jobId The id of the job
+     * @return The IPP job state keyword, such as "processing" or 
+     * "completed", or an empty String if it isn't known
+     */
+    public String getPrinterJobState(int jobId) {
+        PrintJob job;
+        synchronized(spool) {
+            job = findJob(jobId);
+        }
+        if(job == null || !(job.getPrinter() instanceof IPPPrinter) || job.getPrinterJobId() == 0) {
+            LogIt.log(Level.WARNING, "Job " + jobId + " has no printer job to query.");
+            return "";
+        }
+        return ((IPPPrinter)job.getPrinter()).getCachedJobState(job.getPrinterJobId());
+    }
+    
     /**
      * Return the printer list
      *
@@ -809,6 +1457,69 @@ public class PrintSpooler implements Runnable {
         return ipAddress;
     }
     
+    /**
+     * Set the method used to convert raw images to monochrome. Applies to
+     * images appended after the call.
+     * 
+     * @param imageQuantization One of the <code>ImageWrapper</code> 
+     * quantization methods
+     */
+    public void setImageQuantization(int imageQuantization) {
+        this.imageQuantization = imageQuantization;
+        
+        if(currentJob != null) {
+            currentJob.setImageQuantization(imageQuantization);
+        }
+        
+        LogIt.log("Image quantization set to " + imageQuantization);
+    }
+    
+    /**
+     * Turn compressed ZPL image output on or off. Applies to images appended
+     * after the call.
+     * 
+     * @param zplCompression The new value of zplCompression
+     */
+    public void setZplCompression(boolean zplCompression) {
+        this.zplCompression = zplCompression;
+        
+        if(currentJob != null) {
+            currentJob.setZplCompression(zplCompression);
+        }
+        
+        LogIt.log("ZPL image compression set to " + zplCompression);
+    }
+    
+    /**
+     * Get the cache of converted raw image commands shared by all jobs
+     * 
+     * @return The image cache
+     */
+    public ImageCache getImageCache() {
+        return imageCache;
+    }
+    
+    /**
+     * Returns the image cache counters as a JSONObject
+     * 
+     * @return A JSONObject with the hits, misses, disk hits, entry count and
+     * size in bytes of the image cache
+     */
+    public JSONObject getImageCacheStats() {
+        JSONObject stats = new JSONObject();
+        synchronized(imageCache) {
+            stats.put("hits", imageCache.getHits());
+            stats.put("misses", imageCache.getMisses());
+            stats.put("diskHits", imageCache.getDiskHits());
+            stats.put("entries", imageCache.getEntryCount());
+            stats.put("size", imageCache.getSize());
+            stats.put("maxSize", imageCache.getMaxBytes());
+            stats.put("diskSize", imageCache.getDiskSize());
+            stats.put("maxDiskSize", imageCache.getMaxDiskBytes());
+        }
+        return stats;
+    }
+    
     /**
      * Turn alternate printing on or off
      * 
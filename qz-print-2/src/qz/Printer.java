@@ -21,6 +21,7 @@
  */
 package qz;
 
+import java.io.InputStream;
 import javax.print.PrintException;
 import javax.print.PrintService;
 
@@ -46,6 +47,16 @@ public interface Printer {
      * @throws javax.print.PrintException
      */ 
     public abstract void printRaw(ByteArrayBuilder data) throws PrintException;
+    
+    /**
+     * This function streams raw data to a Raw type printer. Implementations
+     * should read the stream in small chunks rather than loading the whole
+     * job into memory.
+     * 
+     * @param data The raw data to send
+     * @throws javax.print.PrintException
+     */
+    public abstract void printRaw(InputStream data) throws PrintException;
 
     /**
      * This function sends raw data to a Raw type printer using an alternate 
@@ -56,6 +67,15 @@ public interface Printer {
      */
     public void printAlternate(ByteArrayBuilder data) throws PrintException;
     
+    /**
+     * This function streams raw data to a Raw type printer using the 
+     * alternate approach designed to work with *nix style printing (CUPS)
+     * 
+     * @param data The raw data to send
+     * @throws javax.print.PrintException
+     */
+    public void printAlternate(InputStream data) throws PrintException;
+    
     /**
      * Returns a boolean value based on whether the printer is ready to accept 
      * a job
@@ -0,0 +1,110 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import qz.json.JSONObject;
+
+/**
+ * The last known condition of a printer, as reported by the printer itself
+ * or by its spooler.
+ */
+public class PrinterStatus {
+    
+    public enum State {
+        /**
+         * Idle or printing, and accepting jobs
+         */
+        READY,
+        /**
+         * Accepting jobs, but its buffer is full
+         */
+        BUSY,
+        /**
+         * Paused, or its queue is stopped
+         */
+        PAUSED,
+        /**
+         * Out of media or ribbon, head or cover open, or in an error state
+         */
+        NEEDS_ATTENTION,
+        /**
+         * Reports itself offline
+         */
+        OFFLINE,
+        /**
+         * Not known, because it isn't monitored or didn't answer
+         */
+        UNKNOWN
+    }
+    
+    private final State state;
+    private final String message;
+    private final long time;
+    
+    public PrinterStatus(State state, String message) {
+        this.state = state;
+        this.message = message == null ? "" : message;
+        this.time = System.currentTimeMillis();
+    }
+    
+    public State getState() {
+        return state;
+    }
+    
+    /**
+     * @return A description of the condition, such as "paper out"
+     */
+    public String getMessage() {
+        return message;
+    }
+    
+    /**
+     * @return The time the status was determined
+     */
+    public long getTime() {
+        return time;
+    }
+    
+    /**
+     * Whether jobs should be sent to the printer. An unknown status never
+     * holds jobs back.
+     * 
+     * @return true if the printer is ready or its status is unknown
+     */
+    public boolean isReady() {
+        return state == State.READY || state == State.UNKNOWN;
+    }
+    
+    public JSONObject toJSON() {
+        JSONObject status = new JSONObject();
+        status.put("state", state.name());
+        status.put("message", message);
+        status.put("ready", isReady());
+        status.put("time", time);
+        return status;
+    }
+    
+    @Override
+    public String toString() {
+        return state.name() + (message.length() > 0 ? " (" + message + ")" : "");
+    }
+}
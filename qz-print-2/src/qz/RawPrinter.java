@@ -22,13 +22,15 @@
 package qz;
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.Socket;
 import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
+import javax.print.Doc;
 import javax.print.DocFlavor;
 import javax.print.DocPrintJob;
 import javax.print.PrintException;
@@ -39,7 +41,7 @@ import javax.print.attribute.HashPrintRequestAttributeSet;
 import javax.print.attribute.PrintRequestAttributeSet;
 import javax.print.attribute.standard.JobName;
 import javax.print.event.PrintJobEvent;
-import javax.print.event.PrintJobListener;
+import javax.print.event.PrintJobAdapter;
 
 /**
  * RawPrinter represents a printer that can accept raw data such as a receipt
@@ -49,10 +51,17 @@ import javax.print.event.PrintJobListener;
  */
 public class RawPrinter implements Printer {
 
+    /**
+     * Default time <code>printRaw</code> waits for the printer to receive a
+     * job, in milliseconds
+     */
+    public static final int DEFAULT_PRINT_TIMEOUT = 30000;
+
     private String name;
     private PrintService ps;
-    private boolean isFinished;
+    private volatile int printTimeout = DEFAULT_PRINT_TIMEOUT;
     private final DocFlavor docFlavor = DocFlavor.BYTE_ARRAY.AUTOSENSE;;
+    private final DocFlavor streamFlavor = DocFlavor.INPUT_STREAM.AUTOSENSE;
     private DocAttributeSet docAttr;
     private final PrintRequestAttributeSet reqAttr = new HashPrintRequestAttributeSet();
     private String jobTitle;
@@ -62,88 +71,239 @@ public class RawPrinter implements Printer {
     }
 
     public void printRaw(ByteArrayBuilder data) throws PrintException {
-        
-        SimpleDoc doc = new SimpleDoc(data.getByteArray(), docFlavor, docAttr);
-        
-        reqAttr.add(new JobName(jobTitle, Locale.getDefault()));
+        waitFor(printRawAsync(data));
+    }
+
+    public void printRaw(InputStream data) throws PrintException {
+        waitFor(printRawAsync(data));
+    }
+    
+    /**
+     * Sends raw data to the print service without waiting for the printer to
+     * receive it.
+     * 
+     * @param data The data to print
+     * @return The job's Completion, done once the printer has received it
+     * @throws PrintException 
+     */
+    public Completion printRawAsync(ByteArrayBuilder data) throws PrintException {
+        return printDoc(new SimpleDoc(data.getByteArray(), docFlavor, docAttr));
+    }
+    
+    /**
+     * Sends raw data to the print service without waiting for the printer to
+     * receive it. Services that can't read a stream are sent a copy of the 
+     * data.
+     * 
+     * @param data The data to print
+     * @return The job's Completion, done once the printer has received it
+     * @throws PrintException 
+     */
+    public Completion printRawAsync(InputStream data) throws PrintException {
+        if (ps.isDocFlavorSupported(streamFlavor)) {
+            return printDoc(new SimpleDoc(data, streamFlavor, docAttr));
+        }
+        LogIt.log(Level.WARNING, "Printer \"" + ps.getName() + "\" does not accept streamed data, buffering job.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            FileUtilities.copyStream(data, out);
+        } catch (IOException ex) {
+            throw new PrintException(ex);
+        }
+        return printDoc(new SimpleDoc(out.toByteArray(), docFlavor, docAttr));
+    }
+    
+    /**
+     * Sends a document to the print service. The returned Completion is
+     * signalled by the job's own events, so it is never shared between jobs.
+     * 
+     * @param doc The document to print
+     * @return The job's Completion
+     * @throws PrintException 
+     */
+    private Completion printDoc(Doc doc) throws PrintException {
+        PrintRequestAttributeSet attr = new HashPrintRequestAttributeSet(reqAttr);
+        attr.add(new JobName(jobTitle, Locale.getDefault()));
         DocPrintJob pj = ps.createPrintJob();
-        pj.addPrintJobListener(new PrintJobListener() {
-            //@Override //JDK 1.6
-            public void printDataTransferCompleted(PrintJobEvent pje) {
-                LogIt.log(pje);
-                isFinished = true;
-            }
+        Completion completion = new Completion();
+        pj.addPrintJobListener(completion);
 
-            //@Override //JDK 1.6
-            public void printJobCompleted(PrintJobEvent pje) {
-                LogIt.log(pje);
-                isFinished = true;
+        LogIt.log("Sending print job to printer: \"" + ps.getName() + "\"");
+        
+        try {
+            pj.print(doc, attr);
+        } catch (PrintException ex) {
+            LogIt.log(Level.SEVERE, "Raw print error.", ex);
+            throw ex;
+        }
+        return completion;
+    }
+    
+    /**
+     * Waits up to the print timeout for a job to be received by the printer
+     * 
+     * @param completion The job's Completion
+     * @throws PrintException if the printer reported the job as failed
+     */
+    private void waitFor(Completion completion) throws PrintException {
+        try {
+            if (!completion.await(printTimeout)) {
+                LogIt.log(Level.WARNING, "Printer \"" + ps.getName() + "\" did not confirm the job within "
+                        + printTimeout + " ms, continuing.");
+                return;
             }
-
-            //@Override //JDK 1.6
-            public void printJobFailed(PrintJobEvent pje) {
-                LogIt.log(pje);
-                isFinished = true;
+        } catch (InterruptedException ex) {
+            LogIt.log(Level.SEVERE, "Raw print process interrupted.", ex);
+            Thread.currentThread().interrupt();
+            return;
+        }
+        
+        if (completion.isFailed()) {
+            throw new PrintException("Print job failed on printer \"" + ps.getName() + "\"");
+        }
+        LogIt.log("Print job received by printer: \"" + ps.getName() + "\"");
+    }
+    
+    /**
+     * Set how long <code>printRaw</code> waits for the printer to receive a 
+     * job
+     * 
+     * @param printTimeout The timeout in milliseconds, 0 to wait indefinitely
+     */
+    public void setPrintTimeout(int printTimeout) {
+        this.printTimeout = Math.max(0, printTimeout);
+    }
+    
+    public int getPrintTimeout() {
+        return printTimeout;
+    }
+    
+    /**
+     * Tracks a single raw job. Done on the first event that ends the job:
+     * data transfer complete, job complete, failed, cancelled or no more 
+     * events.
+     */
+    public static class Completion extends PrintJobAdapter {
+        
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile int reason;
+        
+        private void finish(PrintJobEvent pje) {
+            LogIt.log(pje);
+            if (done.getCount() > 0) {
+                reason = pje.getPrintEventType();
+                done.countDown();
             }
+        }
+        
+        @Override
+        public void printDataTransferCompleted(PrintJobEvent pje) {
+            finish(pje);
+        }
 
-            //@Override //JDK 1.6
-            public void printJobCanceled(PrintJobEvent pje) {
-                LogIt.log(pje);
-                isFinished = true;
-            }
+        @Override
+        public void printJobCompleted(PrintJobEvent pje) {
+            finish(pje);
+        }
 
-            //@Override //JDK 1.6
-            public void printJobNoMoreEvents(PrintJobEvent pje) {
-                LogIt.log(pje);
-                isFinished = true;
-            }
+        @Override
+        public void printJobFailed(PrintJobEvent pje) {
+            finish(pje);
+        }
 
-            //@Override //JDK 1.6
-            public void printJobRequiresAttention(PrintJobEvent pje) {
-                LogIt.log(pje);
-            }
-        });
+        @Override
+        public void printJobCanceled(PrintJobEvent pje) {
+            finish(pje);
+        }
 
-        LogIt.log("Sending print job to printer: \"" + ps.getName() + "\"");
-        
-        try {
-            pj.print(doc, reqAttr);
-        } catch (PrintException ex) {
-            LogIt.log(Level.SEVERE, "Raw print error.", ex);
+        @Override
+        public void printJobNoMoreEvents(PrintJobEvent pje) {
+            finish(pje);
         }
 
-        while (!isFinished) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException ex) {
-                LogIt.log(Level.SEVERE, "Raw print process interrupted.", ex);
+        @Override
+        public void printJobRequiresAttention(PrintJobEvent pje) {
+            LogIt.log(pje);
+        }
+        
+        /**
+         * Waits for the job to finish
+         * 
+         * @param timeout The most time to wait in milliseconds, 0 to wait 
+         * indefinitely
+         * @return true if the job finished, false if the time ran out
+         * @throws InterruptedException 
+         */
+        public boolean await(long timeout) throws InterruptedException {
+            if (timeout <= 0) {
+                done.await();
+                return true;
             }
+            return done.await(timeout, TimeUnit.MILLISECONDS);
+        }
+        
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+        
+        /**
+         * @return The <code>PrintJobEvent</code> type that finished the job, 
+         * or 0 if it hasn't finished
+         */
+        public int getReason() {
+            return reason;
+        }
+        
+        public boolean isFailed() {
+            return reason == PrintJobEvent.JOB_FAILED;
         }
-
-        LogIt.log("Print job received by printer: \"" + ps.getName() + "\"");
     }
 
     public void printAlternate(ByteArrayBuilder data) throws PrintException {
-        File tmpFile = new File("/tmp/qz-spool-" + System.currentTimeMillis());
-        FilePrinter filePrinter = new FilePrinter();
-        
+        printAlternate(data.getInputStream());
+    }
+
+    /**
+     * Sends the data to CUPS through <code>lp</code> and waits for it to be
+     * accepted. The data is written to <code>lp</code>'s standard input by
+     * the <code>AlternatePrintQueue</code>.
+     * 
+     * @param data The data to print
+     * @throws PrintException if <code>lp</code> failed
+     */
+    public void printAlternate(InputStream data) throws PrintException {
         try {
-            filePrinter.setOutputPath(tmpFile.getAbsolutePath());
-            filePrinter.printRaw(data);
-            
-            String shellCmd = "/usr/bin/lp -d \"" + ps.getName()
-                    + "\" -o raw \"" + tmpFile.getAbsolutePath() + "\";";
-            LogIt.log("Runtime Exec running: " + shellCmd);
-            Process pr = Runtime.getRuntime().exec(new String[]{"bash", "-c", shellCmd});
-            pr.waitFor();
-            processStream(pr);
-        } catch (Throwable t) {
-            throw new PrintException(t.getLocalizedMessage());
-        } finally {
-            tmpFile.delete();
+            long sent = AlternatePrintQueue.getDefault().print(ps.getName(), data);
+            LogIt.log("Sent " + sent + " bytes to \"" + ps.getName() + "\" through lp");
+        } catch (IOException ex) {
+            throw new PrintException(ex);
         }
     }
     
+    /**
+     * Queues the data for CUPS and returns without waiting. Jobs queued for
+     * this printer while <code>lp</code> is busy are sent together by the
+     * next <code>lp</code>.
+     * 
+     * @param data The data to print, read from the queue's thread
+     * @param listener Notified once <code>lp</code> has accepted the data or
+     * failed
+     */
+    public void printAlternate(InputStream data, final SendListener listener) {
+        final String printerName = ps.getName();
+        AlternatePrintQueue.getDefault().submit(printerName, data, new SendListener() {
+            public void sent(long bytes) {
+                LogIt.log("Sent " + bytes + " bytes to \"" + printerName + "\" through lp");
+                listener.sent(bytes);
+            }
+            
+            public void failed(IOException ex) {
+                LogIt.log(Level.SEVERE, "Alternate printing failed.", ex);
+                listener.failed(ex);
+            }
+        });
+    }
+    
     /**
      * printToHost sends the raw data to a remote host.
      * 
@@ -152,13 +312,24 @@ public class RawPrinter implements Printer {
      * @param jobPort The port on the target machine
      */
     public void printToHost(ByteArrayBuilder data, String jobHost, int jobPort) {
+        printToHost(data.getInputStream(), jobHost, jobPort);
+    }
+    
+    /**
+     * printToHost streams the raw data to a remote host in small chunks. The
+     * connection is kept in the <code>HostConnectionPool</code> for the next
+     * job to the same host.
+     * 
+     * @param data The data to send
+     * @param jobHost The target host
+     * @param jobPort The port on the target machine
+     */
+    public void printToHost(InputStream data, String jobHost, int jobPort) {
         LogIt.log("Printing to host " + jobHost + ":" + jobPort);
         
         try {
-            Socket socket = new Socket(jobHost, jobPort);
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-            out.write(data.getByteArray());
-            socket.close();
+            long sent = HostConnectionPool.getDefault().send(jobHost, jobPort, data);
+            LogIt.log("Sent " + sent + " bytes to host " + jobHost + ":" + jobPort);
         }
         catch (IOException ex) {
             LogIt.log(Level.SEVERE, "Could not print to host.", ex);
@@ -166,8 +337,43 @@ public class RawPrinter implements Printer {
         
     }
     
+    /**
+     * printToHost queues the raw data for a remote host and returns without
+     * waiting for it to be sent. The <code>HostConnectionPool</code> writes
+     * it on its own thread and then notifies <code>listener</code>, so a slow
+     * printer doesn't hold up the caller.
+     * 
+     * @param data The data to send, read from the pool's thread
+     * @param jobHost The target host
+     * @param jobPort The port on the target machine
+     * @param listener Notified once the data has been sent or has failed
+     */
+    public void printToHost(InputStream data, final String jobHost, final int jobPort, 
+            final SendListener listener) {
+        LogIt.log("Printing to host " + jobHost + ":" + jobPort);
+        
+        HostConnectionPool.getDefault().sendAsync(jobHost, jobPort, data, new SendListener() {
+            public void sent(long bytes) {
+                LogIt.log("Sent " + bytes + " bytes to host " + jobHost + ":" + jobPort);
+                listener.sent(bytes);
+            }
+            
+            public void failed(IOException ex) {
+                LogIt.log(Level.SEVERE, "Could not print to host.", ex);
+                listener.failed(ex);
+            }
+        });
+    }
+    
+    /**
+     * Whether the print service's spooler reports the queue as accepting 
+     * jobs. Checked against the status cached by the 
+     * <code>StatusMonitor</code>.
+     * 
+     * @return false if the queue is stopped or not accepting jobs
+     */
     public boolean ready() {
-        return true;
+        return ps == null || StatusMonitor.getDefault().getServiceStatus(ps).isReady();
     }
 
     public void setPrintService(PrintService ps) {
@@ -0,0 +1,518 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+
+/**
+ * A shared fetch layer for the files, images, PDFs and XML documents jobs 
+ * reference by URL. HTTP responses that carry an <code>ETag</code> or 
+ * <code>Last-Modified</code> header are kept in memory and, optionally, in a
+ * local directory. Later fetches of the same URL send a conditional request
+ * and reuse the cached body when the server answers 304 Not Modified.
+ * Concurrent fetches of one URL share a single request. Both tiers are
+ * bounded in bytes and evict the least recently used resources first.
+ * 
+ * Local files and URLs that aren't http or https are read directly and never
+ * cached.
+ */
+public class ResourceCache {
+    
+    /**
+     * Default bound on the resources held in memory, in bytes
+     */
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+    /**
+     * Default bound on the resources persisted to the cache directory, in bytes
+     */
+    public static final long DEFAULT_MAX_DISK_BYTES = 256 * 1024 * 1024;
+    
+    private static final String BODY_SUFFIX = ".body";
+    private static final String META_SUFFIX = ".meta";
+    
+    private static final ResourceCache defaultCache = new ResourceCache();
+    
+    private final LinkedHashMap<String, Resource> memory = new LinkedHashMap<String, Resource>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private final ConcurrentHashMap<String, FutureTask<byte[]>> inFlight = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long maxDiskBytes = DEFAULT_MAX_DISK_BYTES;
+    private long size = 0;
+    private long diskSize = 0;
+    private File directory;
+    private long hits = 0;
+    private long misses = 0;
+    private long sharedFetches = 0;
+    
+    /**
+     * A cached response body and the validators it was served with
+     */
+    private static class Resource {
+        final byte[] body;
+        final String etag;
+        final String lastModified;
+        
+        Resource(byte[] body, String etag, String lastModified) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+    
+    /**
+     * Get the cache used by the static file reading utilities
+     * 
+     * @return The shared ResourceCache
+     */
+    public static ResourceCache getDefault() {
+        return defaultCache;
+    }
+    
+    /**
+     * Fetch the contents of a URL, revalidating any cached copy with the
+     * server. If another thread is already fetching the URL, this waits for 
+     * its result instead of sending a second request.
+     * 
+     * @param url The URL to fetch
+     * @return The contents of the URL. The array must not be modified.
+     * @throws IOException 
+     */
+    public byte[] fetch(final String url) throws IOException {
+        File local = FileUtilities.getLocalFile(url);
+        if (local != null) {
+            return FileUtilities.readFile(local);
+        }
+        String protocol = new URL(url).getProtocol();
+        if (!protocol.equalsIgnoreCase("http") && !protocol.equalsIgnoreCase("https")) {
+            return FileUtilities.readURL(url);
+        }
+        
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                return load(url);
+            }
+        });
+        FutureTask<byte[]> existing = inFlight.putIfAbsent(url, task);
+        if (existing != null) {
+            synchronized(this) {
+                sharedFetches++;
+            }
+            task = existing;
+        } else {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(url, task);
+            }
+        }
+        
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching " + url);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw (Error)cause;
+        }
+    }
+    
+    /**
+     * Look up the URL in the cache and send a request, conditional if a 
+     * cached copy was found
+     */
+    private byte[] load(String url) throws IOException {
+        String key = getKey(url);
+        Resource cached = lookup(key);
+        
+        HttpURLConnection con = (HttpURLConnection)new URL(url).openConnection();
+        con.setUseCaches(false);
+        if (cached != null) {
+            if (cached.etag != null) {
+                con.setRequestProperty("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified != null) {
+                con.setRequestProperty("If-Modified-Since", cached.lastModified);
+            }
+        }
+        
+        int status;
+        try {
+            status = con.getResponseCode();
+        } catch (IOException ex) {
+            if (cached == null) {
+                throw ex;
+            }
+            LogIt.log(Level.WARNING, "Could not revalidate " + url + ", using cached copy.", ex);
+            countHit();
+            return cached.body;
+        }
+        
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+            con.disconnect();
+            LogIt.log("Using cached copy of " + url);
+            countHit();
+            return cached.body;
+        }
+        
+        byte[] body = readFully(con);
+        synchronized(this) {
+            misses++;
+        }
+        
+        String etag = con.getHeaderField("ETag");
+        String lastModified = con.getHeaderField("Last-Modified");
+        if (etag != null || lastModified != null) {
+            store(key, url, new Resource(body, etag, lastModified));
+        } else if (cached != null) {
+            remove(key);
+        }
+        return body;
+    }
+    
+    private synchronized void countHit() {
+        hits++;
+    }
+    
+    /**
+     * Find a cached resource in memory, then in the cache directory
+     */
+    private Resource lookup(String key) {
+        File dir;
+        synchronized(this) {
+            Resource resource = memory.get(key);
+            if (resource != null) {
+                return resource;
+            }
+            dir = directory;
+            if (dir == null || disk.get(key) == null) {
+                return null;
+            }
+        }
+        
+        try {
+            Properties meta = new Properties();
+            FileInputStream in = new FileInputStream(new File(dir, key + META_SUFFIX));
+            try {
+                meta.load(in);
+            } finally {
+                in.close();
+            }
+            File bodyFile = new File(dir, key + BODY_SUFFIX);
+            byte[] body = FileUtilities.readFile(bodyFile);
+            bodyFile.setLastModified(System.currentTimeMillis());
+            
+            Resource resource = new Resource(body, meta.getProperty("etag"), meta.getProperty("lastModified"));
+            synchronized(this) {
+                putMemory(key, resource);
+            }
+            return resource;
+        } catch (IOException ex) {
+            LogIt.log(Level.WARNING, "Could not read cached resource " + key, ex);
+            remove(key);
+            return null;
+        }
+    }
+    
+    private void store(String key, String url, Resource resource) {
+        File dir;
+        synchronized(this) {
+            putMemory(key, resource);
+            dir = directory;
+            if (dir == null || resource.body.length > maxDiskBytes) {
+                return;
+            }
+        }
+        
+        Properties meta = new Properties();
+        meta.setProperty("url", url);
+        if (resource.etag != null) {
+            meta.setProperty("etag", resource.etag);
+        }
+        if (resource.lastModified != null) {
+            meta.setProperty("lastModified", resource.lastModified);
+        }
+        try {
+            // The body is written before its metadata, and only the metadata
+            // marks an entry as present
+            FileOutputStream out = new FileOutputStream(new File(dir, key + BODY_SUFFIX));
+            try {
+                out.write(resource.body);
+            } finally {
+                out.close();
+            }
+            out = new FileOutputStream(new File(dir, key + META_SUFFIX));
+            try {
+                meta.store(out, null);
+            } finally {
+                out.close();
+            }
+        } catch (IOException ex) {
+            LogIt.log(Level.WARNING, "Could not persist cached resource " + url, ex);
+            return;
+        }
+        
+        synchronized(this) {
+            Long old = disk.put(key, Long.valueOf(resource.body.length));
+            if (old != null) {
+                diskSize -= old.longValue();
+            }
+            diskSize += resource.body.length;
+            trimDisk();
+        }
+    }
+    
+    private void putMemory(String key, Resource resource) {
+        Resource old = memory.remove(key);
+        if (old != null) {
+            size -= old.body.length;
+        }
+        if (resource.body.length <= maxBytes) {
+            memory.put(key, resource);
+            size += resource.body.length;
+            trimMemory();
+        }
+    }
+    
+    private synchronized void remove(String key) {
+        Resource old = memory.remove(key);
+        if (old != null) {
+            size -= old.body.length;
+        }
+        Long length = disk.remove(key);
+        if (length != null) {
+            diskSize -= length.longValue();
+            deleteFiles(key);
+        }
+    }
+    
+    private void trimMemory() {
+        Iterator<Resource> it = memory.values().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            size -= it.next().body.length;
+            it.remove();
+        }
+    }
+    
+    private void trimDisk() {
+        Iterator<Map.Entry<String, Long>> it = disk.entrySet().iterator();
+        while (diskSize > maxDiskBytes && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            diskSize -= entry.getValue().longValue();
+            it.remove();
+            deleteFiles(entry.getKey());
+        }
+    }
+    
+    private void deleteFiles(String key) {
+        if (directory != null) {
+            new File(directory, key + META_SUFFIX).delete();
+            new File(directory, key + BODY_SUFFIX).delete();
+        }
+    }
+    
+    private static byte[] readFully(HttpURLConnection con) throws IOException {
+        int length = con.getContentLength();
+        ByteArrayBuilder body = new ByteArrayBuilder(length > 0 ? length : FileUtilities.STREAM_BUFFER_SIZE);
+        InputStream in = con.getInputStream();
+        try {
+            byte[] buffer = new byte[FileUtilities.STREAM_BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                body.append(buffer, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return body.getByteArray();
+    }
+    
+    private static String getKey(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return ByteUtilities.bytesToHex(digest.digest(url.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-1 is not available", ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 is not available", ex);
+        }
+    }
+    
+    /**
+     * Set the bound on the resources held in memory
+     * 
+     * @param maxBytes The new bound in bytes. 0 disables the memory tier.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimMemory();
+    }
+    
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+    
+    /**
+     * Set the bound on the resources persisted to the cache directory
+     * 
+     * @param maxDiskBytes The new bound in bytes
+     */
+    public synchronized void setMaxDiskBytes(long maxDiskBytes) {
+        this.maxDiskBytes = maxDiskBytes;
+        trimDisk();
+    }
+    
+    public synchronized long getMaxDiskBytes() {
+        return maxDiskBytes;
+    }
+    
+    /**
+     * Set the directory resources are persisted to. Resources already in the
+     * directory are picked up, least recently used first.
+     * 
+     * @param directory The cache directory, or null to only cache in memory
+     */
+    public synchronized void setDirectory(File directory) {
+        setDirectory(directory, maxDiskBytes);
+    }
+    
+    /**
+     * Set the directory resources are persisted to along with its size limit.
+     * The limit only applies once the previous directory has been let go, so
+     * it is never trimmed to the new directory's limit.
+     * 
+     * @param directory The cache directory, or null to only cache in memory
+     * @param maxDiskBytes The total size of the resources kept in the directory
+     */
+    public synchronized void setDirectory(File directory, long maxDiskBytes) {
+        disk.clear();
+        diskSize = 0;
+        this.directory = null;
+        this.maxDiskBytes = maxDiskBytes;
+        if (directory == null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LogIt.log(Level.WARNING, "Could not create resource cache directory " + directory);
+            return;
+        }
+        this.directory = directory;
+        
+        ArrayList<File> bodies = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            String name = files[i].getName();
+            if (name.endsWith(BODY_SUFFIX) && new File(directory, 
+                    name.substring(0, name.length() - BODY_SUFFIX.length()) + META_SUFFIX).isFile()) {
+                bodies.add(files[i]);
+            }
+        }
+        Collections.sort(bodies, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        for (File body : bodies) {
+            String name = body.getName();
+            disk.put(name.substring(0, name.length() - BODY_SUFFIX.length()), Long.valueOf(body.length()));
+            diskSize += body.length();
+        }
+        trimDisk();
+    }
+    
+    public synchronized File getDirectory() {
+        return directory;
+    }
+    
+    /**
+     * Drop every cached resource, including persisted ones, and reset the
+     * counters
+     */
+    public synchronized void clear() {
+        for (String key : disk.keySet()) {
+            deleteFiles(key);
+        }
+        disk.clear();
+        memory.clear();
+        size = 0;
+        diskSize = 0;
+        hits = 0;
+        misses = 0;
+        sharedFetches = 0;
+    }
+    
+    /**
+     * @return The number of fetches answered from the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+    
+    /**
+     * @return The number of fetches that downloaded the resource
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+    
+    /**
+     * @return The number of fetches that waited on another thread's request
+     */
+    public synchronized long getSharedFetches() {
+        return sharedFetches;
+    }
+    
+    public synchronized long getSize() {
+        return size;
+    }
+    
+    public synchronized long getDiskSize() {
+        return diskSize;
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.io.IOException;
+
+/**
+ * Receives the outcome of a job handed to an asynchronous sender, such as 
+ * the <code>HostConnectionPool</code> or the <code>AlternatePrintQueue</code>.
+ * Called from the sender's thread, so implementations must return quickly.
+ */
+public interface SendListener {
+    
+    /**
+     * The job has been handed to the printer
+     * 
+     * @param bytes The number of bytes sent
+     */
+    public void sent(long bytes);
+
+    /**
+     * The job could not be sent
+     * 
+     * @param ex The cause
+     */
+    public void failed(IOException ex);
+}
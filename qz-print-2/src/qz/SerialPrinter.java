@@ -22,6 +22,7 @@
 package qz;
 
 import java.applet.Applet;
+import java.io.InputStream;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.logging.Level;
@@ -50,8 +51,13 @@ public class SerialPrinter implements Printer {
     private int parity;
     
     // Beginning and ending patterns that signify port has responded
-    private byte[] begin = { '\u0002' };
-    private byte[] end = { '\r' };
+    private ByteSearcher begin = new ByteSearcher(new byte[] { '\u0002' });
+    private ByteSearcher end = new ByteSearcher(new byte[] { '\r' });
+    
+    // Positions of the last patterns found in the output buffer, so each
+    // event only searches the newly received bytes
+    private int lastBegin = -1;
+    private int lastEnd = -1;
     
     // Timeout to wait before giving up on reading the specified amount of bytes
     private int timeout;
@@ -99,10 +105,18 @@ public class SerialPrinter implements Printer {
         LogIt.log(Level.WARNING, "Serial Printer does not support raw printing.");
     }
 
+    public void printRaw(InputStream data) throws PrintException {
+        LogIt.log(Level.WARNING, "Serial Printer does not support raw printing.");
+    }
+
     public void printAlternate(ByteArrayBuilder data) throws PrintException {
         LogIt.log(Level.WARNING, "Serial Printer does not support alternate printing.");
     }
 
+    public void printAlternate(InputStream data) throws PrintException {
+        LogIt.log(Level.WARNING, "Serial Printer does not support alternate printing.");
+    }
+
     public boolean ready() {
         return ready;
     }
@@ -234,7 +248,12 @@ public class SerialPrinter implements Printer {
      * @param serialBegin The beginning character.
      */
     public void setSerialBegin(ByteArrayBuilder serialBegin) {
-        this.begin = serialBegin.getByteArray();
+        if (serialBegin.getLength() == 0) {
+            LogIt.log(Level.WARNING, "The serial begin character can't be empty.");
+            return;
+        }
+        this.begin = new ByteSearcher(serialBegin.getByteArray());
+        resetSearch();
     }
 
     /**
@@ -243,7 +262,22 @@ public class SerialPrinter implements Printer {
      * @param serialEnd The ending character.
      */
     public void setSerialEnd(ByteArrayBuilder serialEnd) {
-        this.end = serialEnd.getByteArray();
+        if (serialEnd.getLength() == 0) {
+            LogIt.log(Level.WARNING, "The serial end character can't be empty.");
+            return;
+        }
+        this.end = new ByteSearcher(serialEnd.getByteArray());
+        resetSearch();
+    }
+    
+    /**
+     * Search the output buffer for the begin and end patterns from the start
+     */
+    private void resetSearch() {
+        begin.reset();
+        end.reset();
+        lastBegin = -1;
+        lastEnd = -1;
     }
 
     /**
@@ -350,14 +384,18 @@ public class SerialPrinter implements Printer {
             if (event.isRXCHAR()) {
                 getOutputBuffer().append(port.readBytes(event.getEventValue(), timeout));
                 
-                int[] beginPos = ByteUtilities.indicesOfSublist(getOutputBuffer().getByteArray(), begin);
-                int[] endPos = ByteUtilities.indicesOfSublist(getOutputBuffer().getByteArray(), end);
-                if (beginPos.length > 0 && endPos.length > 0) {
-                    int _begin = beginPos[beginPos.length -1];
-                    int _end  = endPos[endPos.length -1];
-                    output = new byte[_end - _begin];
-                    System.arraycopy(getOutputBuffer().getByteArray(), _begin, output, 0, _end - _begin);
-                    getOutputBuffer().clear();
+                ByteArrayBuilder buffer = getOutputBuffer();
+                int found;
+                while ((found = begin.findNext(buffer)) >= 0) {
+                    lastBegin = found;
+                }
+                while ((found = end.findNext(buffer)) >= 0) {
+                    lastEnd = found;
+                }
+                if (lastEnd >= lastBegin && lastBegin >= 0) {
+                    output = buffer.subArray(lastBegin, lastEnd);
+                    buffer.clear();
+                    resetSearch();
                 }
                 
                 if(output != null) {
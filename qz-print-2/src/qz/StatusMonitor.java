@@ -0,0 +1,436 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.io.IOException;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import javax.print.PrintService;
+import javax.print.attribute.PrintServiceAttributeSet;
+import javax.print.attribute.standard.PrinterIsAcceptingJobs;
+import javax.print.attribute.standard.PrinterState;
+import javax.print.attribute.standard.PrinterStateReasons;
+
+/**
+ * Caches printer status so <code>Printer.ready()</code> can be checked 
+ * from the spooler's run loop, or the page, without waiting on a printer. 
+ * 
+ * A status older than the time to live is refreshed in the background, and
+ * the cached status is returned meanwhile. Printers that have not answered
+ * yet are UNKNOWN, which doesn't hold jobs back.
+ * 
+ * Raw network printers are asked in their own language over their 
+ * <code>HostConnectionPool</code> connection: ZPL <code>~HS</code>, EPL
+ * <code>^ee</code> or ESC/POS <code>DLE EOT</code>. The language must be 
+ * set, since sending one language's query to another printer may print it.
+ */
+public class StatusMonitor {
+    
+    /**
+     * Default time a status is used before it is refreshed, in milliseconds
+     */
+    public static final int DEFAULT_TTL = 2000;
+    
+    private static final int QUERY_TIMEOUT = 2000;
+    
+    /**
+     * Values kept before the least recently used is dropped. Each job whose
+     * state is polled adds one, so this bounds the cache over a long session.
+     */
+    private static final int MAX_ENTRIES = 256;
+    
+    private static final StatusMonitor defaultMonitor = new StatusMonitor();
+    
+    private static final byte[] ZPL_QUERY = { '~', 'H', 'S', '\r', '\n' };
+    private static final byte[] EPL_QUERY = { '\r', '\n', '^', 'e', 'e', '\r', '\n' };
+    private static final byte[] ESCPOS_QUERY = { 0x10, 0x04, 1, 0x10, 0x04, 2, 0x10, 0x04, 4 };
+    
+    /**
+     * A cached value
+     */
+    private static class Entry {
+        Object value;
+        long time;
+        boolean refreshing;
+    }
+    
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final HashMap<String, LanguageType> hostLanguages = new HashMap<String, LanguageType>();
+    private final ExecutorService executor;
+    private volatile int ttl = DEFAULT_TTL;
+    private volatile LanguageType hostLanguage;
+    
+    /**
+     * Get the monitor used by the printers
+     * 
+     * @return The shared StatusMonitor
+     */
+    public static StatusMonitor getDefault() {
+        return defaultMonitor;
+    }
+    
+    public StatusMonitor() {
+        executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "qz-status-" + (count++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+    
+    /**
+     * Get the cached status for a key, refreshing it in the background with
+     * <code>query</code> if it has expired
+     * 
+     * @param key Identifies the printer
+     * @param query Determines the printer's current status
+     * @return The cached status
+     */
+    public PrinterStatus getStatus(final String key, final Callable<PrinterStatus> query) {
+        return getCached(key, new Callable<PrinterStatus>() {
+            public PrinterStatus call() {
+                try {
+                    return query.call();
+                } catch (Exception ex) {
+                    LogIt.log(Level.WARNING, "Could not get status of " + key, ex);
+                    return new PrinterStatus(PrinterStatus.State.UNKNOWN, ex.getMessage());
+                }
+            }
+        }, new PrinterStatus(PrinterStatus.State.UNKNOWN, "Not queried yet"));
+    }
+    
+    /**
+     * Get a cached value, such as a printer's job state, refreshing it in 
+     * the background with <code>query</code> if it has expired. The caller
+     * never waits on the query. Queries run privileged, as they may be
+     * started from the page.
+     * 
+     * @param key Identifies the value
+     * @param query Fetches the current value
+     * @param initial Returned until the first query has finished
+     * @return The cached value. A failed query keeps the previous value.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getCached(final String key, final Callable<T> query, T initial) {
+        final Entry entry;
+        synchronized (entries) {
+            Entry cached = entries.get(key);
+            if (cached == null) {
+                cached = new Entry();
+                cached.value = initial;
+                entries.put(key, cached);
+                if (entries.size() > MAX_ENTRIES) {
+                    Iterator<Entry> it = entries.values().iterator();
+                    it.next();
+                    it.remove();
+                }
+            }
+            entry = cached;
+            if (entry.refreshing || System.currentTimeMillis() - entry.time < ttl) {
+                return (T)entry.value;
+            }
+            entry.refreshing = true;
+        }
+        
+        executor.execute(new Runnable() {
+            public void run() {
+                Object value = null;
+                try {
+                    value = AccessController.doPrivileged(new PrivilegedExceptionAction<T>() {
+                        public T run() throws Exception {
+                            return query.call();
+                        }
+                    });
+                } catch (PrivilegedActionException ex) {
+                    LogIt.log(Level.WARNING, "Could not refresh " + key, ex.getException());
+                } catch (RuntimeException ex) {
+                    LogIt.log(Level.WARNING, "Could not refresh " + key, ex);
+                }
+                synchronized (entries) {
+                    if (value != null) {
+                        if (!String.valueOf(value).equals(String.valueOf(entry.value))) {
+                            LogIt.log(key + " is now " + value);
+                        }
+                        entry.value = value;
+                    }
+                    entry.time = System.currentTimeMillis();
+                    entry.refreshing = false;
+                }
+            }
+        });
+        return (T)entry.value;
+    }
+    
+    /**
+     * Get the status of a raw network printer, queried in the language set 
+     * for it
+     * 
+     * @param host The printer's host
+     * @param port The printer's port
+     * @return The cached status, UNKNOWN if no language is set
+     */
+    public PrinterStatus getHostStatus(final String host, final int port) {
+        final LanguageType lang;
+        synchronized (hostLanguages) {
+            LanguageType hostLang = hostLanguages.get(host + ":" + port);
+            lang = hostLang != null ? hostLang : hostLanguage;
+        }
+        final byte[] request = getQuery(lang);
+        if (request == null) {
+            return new PrinterStatus(PrinterStatus.State.UNKNOWN, "No status language set");
+        }
+        
+        return getStatus("HOST:" + host + ":" + port, new Callable<PrinterStatus>() {
+            public PrinterStatus call() throws IOException {
+                byte[] response = HostConnectionPool.getDefault().query(host, port, request, 
+                        getResponseCheck(lang), QUERY_TIMEOUT);
+                return parseResponse(lang, response);
+            }
+        });
+    }
+    
+    /**
+     * Get the status of a print service from the attributes its spooler 
+     * reports
+     * 
+     * @param ps The print service
+     * @return The cached status
+     */
+    public PrinterStatus getServiceStatus(final PrintService ps) {
+        return getStatus("SERVICE:" + ps.getName(), new Callable<PrinterStatus>() {
+            public PrinterStatus call() {
+                PrintServiceAttributeSet attributes = ps.getAttributes();
+                PrinterIsAcceptingJobs accepting = (PrinterIsAcceptingJobs)attributes.get(PrinterIsAcceptingJobs.class);
+                PrinterState state = (PrinterState)attributes.get(PrinterState.class);
+                PrinterStateReasons reasons = (PrinterStateReasons)attributes.get(PrinterStateReasons.class);
+                String message = reasons == null || reasons.isEmpty() ? "" : reasons.keySet().toString();
+                
+                if (PrinterState.STOPPED.equals(state)) {
+                    return new PrinterStatus(PrinterStatus.State.PAUSED, "Stopped " + message);
+                }
+                if (PrinterIsAcceptingJobs.NOT_ACCEPTING_JOBS.equals(accepting)) {
+                    return new PrinterStatus(PrinterStatus.State.PAUSED, "Not accepting jobs " + message);
+                }
+                if (accepting == null && state == null) {
+                    return new PrinterStatus(PrinterStatus.State.UNKNOWN, "Not reported by print service");
+                }
+                return new PrinterStatus(PrinterStatus.State.READY, message);
+            }
+        });
+    }
+    
+    /**
+     * The status request for a printer language, or null if the language 
+     * has none
+     */
+    private static byte[] getQuery(LanguageType lang) {
+        if (lang == null) {
+            return null;
+        }
+        switch (lang) {
+            case ZPL:
+            case ZPLII:
+                return ZPL_QUERY;
+            case EPL:
+            case EPL2:
+                return EPL_QUERY;
+            case ESCP:
+            case ESCPOS:
+            case ESCPOS_GRAPHICS:
+                return ESCPOS_QUERY;
+            default:
+                return null;
+        }
+    }
+    
+    private static HostConnectionPool.ResponseCheck getResponseCheck(final LanguageType lang) {
+        return new HostConnectionPool.ResponseCheck() {
+            public boolean isComplete(ByteArrayBuilder response) {
+                byte[] data = response.getByteArray();
+                int length = response.getLength();
+                switch (lang) {
+                    case ZPL:
+                    case ZPLII:
+                        // Three strings, each ended by ETX
+                        int strings = 0;
+                        for (int i = 0; i < length; i++) {
+                            if (data[i] == 0x03) {
+                                strings++;
+                            }
+                        }
+                        return strings >= 3;
+                    case EPL:
+                    case EPL2:
+                        return length > 0 && data[length - 1] == '\n' && new String(data, 0, length).trim().length() > 0;
+                    default:
+                        return length >= 3;
+                }
+            }
+        };
+    }
+    
+    /**
+     * Decode a printer's reply to its status request
+     * 
+     * @param lang The printer language
+     * @param response The reply
+     * @return The status it describes
+     */
+    static PrinterStatus parseResponse(LanguageType lang, byte[] response) {
+        switch (lang) {
+            case ZPL:
+            case ZPLII:
+                return parseZPL(response);
+            case EPL:
+            case EPL2:
+                return parseEPL(response);
+            default:
+                return parseESCPOS(response);
+        }
+    }
+    
+    /**
+     * ~HS answers with three strings. The first holds the paper out (1),
+     * pause (2) and buffer full (5) flags, the second the head up (2) and 
+     * ribbon out (3) flags.
+     */
+    private static PrinterStatus parseZPL(byte[] response) {
+        String[] strings = new String(response).replace("\u0002", "").split("\u0003\\s*");
+        if (strings.length < 2) {
+            return new PrinterStatus(PrinterStatus.State.UNKNOWN, "Unexpected ~HS reply");
+        }
+        String[] first = strings[0].trim().split(",");
+        String[] second = strings[1].trim().split(",");
+        
+        if (flag(second, 2)) {
+            return new PrinterStatus(PrinterStatus.State.NEEDS_ATTENTION, "Head open");
+        }
+        if (flag(first, 1)) {
+            return new PrinterStatus(PrinterStatus.State.NEEDS_ATTENTION, "Paper out");
+        }
+        if (flag(second, 3)) {
+            return new PrinterStatus(PrinterStatus.State.NEEDS_ATTENTION, "Ribbon out");
+        }
+        if (flag(first, 2)) {
+            return new PrinterStatus(PrinterStatus.State.PAUSED, "Paused");
+        }
+        if (flag(first, 5)) {
+            return new PrinterStatus(PrinterStatus.State.BUSY, "Buffer full");
+        }
+        return new PrinterStatus(PrinterStatus.State.READY, "");
+    }
+    
+    private static boolean flag(String[] fields, int index) {
+        return fields.length > index && "1".equals(fields[index].trim());
+    }
+    
+    /**
+     * ^ee answers with a two digit error code, 00 for none
+     */
+    private static PrinterStatus parseEPL(byte[] response) {
+        String code = new String(response).trim();
+        if ("07".equals(code)) {
+            return new PrinterStatus(PrinterStatus.State.NEEDS_ATTENTION, "Paper or ribbon out");
+        }
+        if ("11".equals(code)) {
+            return new PrinterStatus(PrinterStatus.State.NEEDS_ATTENTION, "Head open");
+        }
+        if ("12".equals(code)) {
+            return new PrinterStatus(PrinterStatus.State.PAUSED, "Paused");
+        }
+        // Other codes describe the last job rather than the printer
+        return new PrinterStatus(PrinterStatus.State.READY, "00".equals(code) ? "" : "Error " + code);
+    }
+    
+    /**
+     * DLE EOT 1, 2 and 4 answer with one byte each: printer status (offline
+     * 0x08), offline cause (cover open 0x04, paper end 0x20, error 0x40) and
+     * roll paper sensor (near end 0x0C, paper end 0x60).
+     */
+    private static PrinterStatus parseESCPOS(byte[] response) {
+        if (response.length < 3) {
+            return new PrinterStatus(PrinterStatus.State.UNKNOWN, "Unexpected DLE EOT reply");
+        }
+        int printer = response[0], cause = response[1], paper = response[2];
+        
+        if ((cause & 0x04) != 0) {
+            return new PrinterStatus(PrinterStatus.State.NEEDS_ATTENTION, "Cover open");
+        }
+        if ((cause & 0x20) != 0 || (paper & 0x60) != 0) {
+            return new PrinterStatus(PrinterStatus.State.NEEDS_ATTENTION, "Paper out");
+        }
+        if ((cause & 0x40) != 0) {
+            return new PrinterStatus(PrinterStatus.State.NEEDS_ATTENTION, "Error");
+        }
+        if ((printer & 0x08) != 0) {
+            return new PrinterStatus(PrinterStatus.State.OFFLINE, "Offline");
+        }
+        return new PrinterStatus(PrinterStatus.State.READY, (paper & 0x0C) != 0 ? "Paper low" : "");
+    }
+    
+    /**
+     * Set the language used to query raw network printers that have no 
+     * language of their own set
+     * 
+     * @param lang ZPL, EPL or ESC/POS, or null to stop querying them
+     */
+    public void setHostLanguage(LanguageType lang) {
+        hostLanguage = lang;
+    }
+    
+    /**
+     * Set the language used to query a single raw network printer
+     * 
+     * @param host The printer's host
+     * @param port The printer's port
+     * @param lang ZPL, EPL or ESC/POS, or null to use the default
+     */
+    public void setHostLanguage(String host, int port, LanguageType lang) {
+        synchronized (hostLanguages) {
+            if (lang == null) {
+                hostLanguages.remove(host + ":" + port);
+            } else {
+                hostLanguages.put(host + ":" + port, lang);
+            }
+        }
+    }
+    
+    /**
+     * Set how long a status is used before it is refreshed
+     * 
+     * @param ttl The time in milliseconds
+     */
+    public void setTTL(int ttl) {
+        this.ttl = Math.max(0, ttl);
+    }
+}